@@ -15,6 +15,10 @@ package com.teradata.prestomanager.agent;
 
 import io.airlift.configuration.Config;
 import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
+import io.airlift.units.MinDataSize;
+import io.airlift.units.MinDuration;
 
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
@@ -22,6 +26,9 @@ import javax.validation.constraints.NotNull;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 public class AgentConfig
 {
     private PackageType packageType;
@@ -31,10 +38,19 @@ public class AgentConfig
     private int shortSubprocessTimeout = 60;
     private String defaultLogEntry = "0000-01-01T00:00:00.000+0000" +
             "\tALL\t[none]\t[none]\tThis log entry was not preceded by a header:";
-    private String logEntryPattern = "^(?<date>[0-9]{4}-[0-9]{2}-[0-9]{2}" +
-            "T[0-9]{2}:[0-9]{2}:[0-9]{2}(\\.[0-9]{3})?[+-][0-9]{4})" +
-            "\t(?<level>[A-Z]+)\t(?<thread>[^\t]+)\t(?<class>[^\t]+)" +
-            "\t(?<message>.*)$";
+    private String logEntryPattern = LogHeaderParser.PATTERN;
+    private boolean logIndexEnabled = true;
+    private Path logIndexDirectory = Paths.get("var/log-index");
+    private int logIndexInterval = 1000;
+    private DataSize logIndexBlockSize = new DataSize(1, DataSize.Unit.MEGABYTE);
+    private boolean logFilterMemoryMapped;
+    private int logFilterParallelism = 1;
+    private DataSize logFilterSplitSize = new DataSize(64, DataSize.Unit.MEGABYTE);
+    private Duration logFollowPollInterval = new Duration(500, MILLISECONDS);
+    private int logFollowMaxFollowers = 16;
+    private int logReadMaxReaders = 8;
+    private Duration logReadTimeout = new Duration(5, MINUTES);
+    private DataSize logCacheMaxSize = new DataSize(64, DataSize.Unit.MEGABYTE);
 
     @Config("packaging")
     @ConfigDescription("what type of Presto installation will be managed")
@@ -134,4 +150,174 @@ public class AgentConfig
     {
         return logEntryPattern;
     }
+
+    @Config("log-index.enabled")
+    @ConfigDescription("whether to index log files by time to speed up date range queries")
+    public AgentConfig setLogIndexEnabled(boolean logIndexEnabled)
+    {
+        this.logIndexEnabled = logIndexEnabled;
+        return this;
+    }
+
+    public boolean isLogIndexEnabled()
+    {
+        return logIndexEnabled;
+    }
+
+    @Config("log-index.dir")
+    @ConfigDescription("Directory in which to store log file indexes")
+    public AgentConfig setLogIndexDirectory(String path)
+    {
+        logIndexDirectory = Paths.get(path);
+        return this;
+    }
+
+    @NotNull
+    public Path getLogIndexDirectory()
+    {
+        return logIndexDirectory;
+    }
+
+    @Config("log-index.interval")
+    @ConfigDescription("number of log entries between each indexed entry")
+    public AgentConfig setLogIndexInterval(int logIndexInterval)
+    {
+        this.logIndexInterval = logIndexInterval;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getLogIndexInterval()
+    {
+        return logIndexInterval;
+    }
+
+    @Config("log-index.block-size")
+    @ConfigDescription("size of the parts of a log file whose words are indexed together for searches")
+    public AgentConfig setLogIndexBlockSize(DataSize logIndexBlockSize)
+    {
+        this.logIndexBlockSize = logIndexBlockSize;
+        return this;
+    }
+
+    @NotNull
+    @MinDataSize("1kB")
+    public DataSize getLogIndexBlockSize()
+    {
+        return logIndexBlockSize;
+    }
+
+    @Config("log-filter.memory-mapped")
+    @ConfigDescription("whether to memory-map log files when filtering them")
+    public AgentConfig setLogFilterMemoryMapped(boolean logFilterMemoryMapped)
+    {
+        this.logFilterMemoryMapped = logFilterMemoryMapped;
+        return this;
+    }
+
+    public boolean isLogFilterMemoryMapped()
+    {
+        return logFilterMemoryMapped;
+    }
+
+    @Config("log-filter.parallelism")
+    @ConfigDescription("number of threads used to filter each log file; 1 to filter sequentially")
+    public AgentConfig setLogFilterParallelism(int logFilterParallelism)
+    {
+        this.logFilterParallelism = logFilterParallelism;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getLogFilterParallelism()
+    {
+        return logFilterParallelism;
+    }
+
+    @Config("log-filter.split-size")
+    @ConfigDescription("size of the parts of a log file filtered in parallel")
+    public AgentConfig setLogFilterSplitSize(DataSize logFilterSplitSize)
+    {
+        this.logFilterSplitSize = logFilterSplitSize;
+        return this;
+    }
+
+    @NotNull
+    @MinDataSize("1kB")
+    public DataSize getLogFilterSplitSize()
+    {
+        return logFilterSplitSize;
+    }
+
+    @Config("log-follow.poll-interval")
+    @ConfigDescription("longest time between checks of a followed log file for new entries")
+    public AgentConfig setLogFollowPollInterval(Duration logFollowPollInterval)
+    {
+        this.logFollowPollInterval = logFollowPollInterval;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("10ms")
+    public Duration getLogFollowPollInterval()
+    {
+        return logFollowPollInterval;
+    }
+
+    @Config("log-follow.max-followers")
+    @ConfigDescription("maximum number of requests following log files at once")
+    public AgentConfig setLogFollowMaxFollowers(int logFollowMaxFollowers)
+    {
+        this.logFollowMaxFollowers = logFollowMaxFollowers;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getLogFollowMaxFollowers()
+    {
+        return logFollowMaxFollowers;
+    }
+
+    @Config("log-read.max-readers")
+    @ConfigDescription("maximum number of requests that may read log files at once")
+    public AgentConfig setLogReadMaxReaders(int logReadMaxReaders)
+    {
+        this.logReadMaxReaders = logReadMaxReaders;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getLogReadMaxReaders()
+    {
+        return logReadMaxReaders;
+    }
+
+    @Config("log-read.timeout")
+    @ConfigDescription("longest time a request may read log files before it starts to send them")
+    public AgentConfig setLogReadTimeout(Duration logReadTimeout)
+    {
+        this.logReadTimeout = logReadTimeout;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("1s")
+    public Duration getLogReadTimeout()
+    {
+        return logReadTimeout;
+    }
+
+    @Config("log-cache.max-size")
+    @ConfigDescription("size of the cached results of queries for the last entries of log files; 0B to disable")
+    public AgentConfig setLogCacheMaxSize(DataSize logCacheMaxSize)
+    {
+        this.logCacheMaxSize = logCacheMaxSize;
+        return this;
+    }
+
+    @NotNull
+    public DataSize getLogCacheMaxSize()
+    {
+        return logCacheMaxSize;
+    }
 }
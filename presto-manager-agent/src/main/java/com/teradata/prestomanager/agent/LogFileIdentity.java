@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Identifies the contents of a log file at a point in time
+ * <p>
+ * Log files are only ever appended to, unless they are truncated or
+ * rotated. An identity can be used to tell whether a file still holds
+ * the same data it did when the identity was taken, plus possibly some
+ * appended data.
+ */
+final class LogFileIdentity
+{
+    private static final int PREFIX_LENGTH = 4096;
+
+    private final String fileKey;
+    private final long length;
+    private final long lastModified;
+    private final int prefixLength;
+    private final long prefixChecksum;
+
+    private LogFileIdentity(String fileKey, long length, long lastModified,
+            int prefixLength, long prefixChecksum)
+    {
+        this.fileKey = requireNonNull(fileKey);
+        this.length = length;
+        this.lastModified = lastModified;
+        this.prefixLength = prefixLength;
+        this.prefixChecksum = prefixChecksum;
+    }
+
+    public static LogFileIdentity of(Path file)
+            throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long length = attributes.size();
+        int prefixLength = (int) Math.min(length, PREFIX_LENGTH);
+        return new LogFileIdentity(
+                String.valueOf(attributes.fileKey()),
+                length,
+                attributes.lastModifiedTime().toMillis(),
+                prefixLength,
+                checksum(file, prefixLength));
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Check if the given file is this file, with the same contents up to
+     * {@link #getLength()}. The file may have grown since.
+     */
+    public boolean isPrefixOf(Path file)
+            throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return fileKey.equals(String.valueOf(attributes.fileKey()))
+                && attributes.size() >= length
+                && checksum(file, prefixLength) == prefixChecksum;
+    }
+
+    public void writeTo(DataOutput output)
+            throws IOException
+    {
+        output.writeUTF(fileKey);
+        output.writeLong(length);
+        output.writeLong(lastModified);
+        output.writeInt(prefixLength);
+        output.writeLong(prefixChecksum);
+    }
+
+    public static LogFileIdentity readFrom(DataInput input)
+            throws IOException
+    {
+        return new LogFileIdentity(input.readUTF(), input.readLong(),
+                input.readLong(), input.readInt(), input.readLong());
+    }
+
+    /**
+     * @return A checksum of the start of the file before the offset, up to
+     * the length of the prefix an identity checks
+     */
+    public static long prefixChecksum(Path file, long offset)
+            throws IOException
+    {
+        return checksum(file, (int) Math.min(offset, PREFIX_LENGTH));
+    }
+
+    private static long checksum(Path file, int length)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading until the buffer is full
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        return crc.getValue();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        LogFileIdentity that = (LogFileIdentity) o;
+        return length == that.length
+                && lastModified == that.lastModified
+                && prefixLength == that.prefixLength
+                && prefixChecksum == that.prefixChecksum
+                && fileKey.equals(that.fileKey);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(fileKey, length, lastModified, prefixLength, prefixChecksum);
+    }
+}
@@ -13,22 +13,52 @@
  */
 package com.teradata.prestomanager.agent;
 
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.BoundType;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
+import static java.util.Spliterator.NONNULL;
+import static java.util.Spliterator.ORDERED;
+import static java.util.Spliterators.spliteratorUnknownSize;
 
 /**
  * Class for filtering the contents of log files
@@ -40,18 +70,49 @@ import static java.util.Objects.requireNonNull;
  */
 public class LogFilter
 {
+    private static final Range<Long> ALL_OFFSETS = Range.closedOpen(0L, Long.MAX_VALUE);
+    private static final String[] NO_GROUP_VALUES = new String[0];
+
+    /**
+     * The patterns, default entries and filtered groups the constructor
+     * has already checked, as {@link #validationKey} lists
+     * <p>
+     * Filters are built for every request, every split of a file and every
+     * poll of a followed file, almost always with the configured pattern and
+     * default entry, so the check is usually skipped.
+     */
+    private static final Set<List<Object>> VALIDATED = ConcurrentHashMap.newKeySet();
+    private static final int MAX_VALIDATED = 64;
+
     private final Path file;
     private final Pattern logPattern;
     private final String defaultEntry;
     private final String lineSeparator;
     private final ImmutableMap<String, Predicate<String>> namedGroupFilters;
+    // The same filters, for checking each header without an iterator
+    private final ImmutableList<String> filterGroups;
+    private final ImmutableList<Predicate<String>> filterPredicates;
+    private final Predicate<String> entryFilter;
+    private final String stopGroup;
+    private final Predicate<String> stopFilter;
     private final int maxEntries;
     private final boolean keepFirst;
+    private final ImmutableRangeSet<Long> ranges;
+    private final long startOffset;
+    private final long endOffset;
+    private final boolean memoryMapped;
+    private final ForkJoinPool pool;
+    private final long splitSize;
+    private final boolean compressed;
 
     private LogFilter(Path file, Pattern logPattern,
             String defaultEntry, String lineSeparator,
             Map<String, Predicate<String>> namedGroupFilters,
-            int maxEntries, boolean keepFirst)
+            Predicate<String> entryFilter,
+            String stopGroup, Predicate<String> stopFilter,
+            int maxEntries, boolean keepFirst,
+            RangeSet<Long> ranges, boolean memoryMapped,
+            ForkJoinPool pool, long splitSize, boolean compressed)
             throws FileNotFoundException
     {
         this.file = requireNonNull(file);
@@ -59,35 +120,468 @@ public class LogFilter
         this.defaultEntry = requireNonNull(defaultEntry);
         this.lineSeparator = requireNonNull(lineSeparator);
         this.namedGroupFilters = ImmutableMap.copyOf(requireNonNull(namedGroupFilters));
+        this.filterGroups = this.namedGroupFilters.keySet().asList();
+        this.filterPredicates = this.namedGroupFilters.values().asList();
+        this.entryFilter = requireNonNull(entryFilter);
+        if ((stopGroup == null) != (stopFilter == null)) {
+            throw new IllegalArgumentException("Group and filter to stop at must both be given");
+        }
+        this.stopGroup = stopGroup;
+        this.stopFilter = stopFilter;
         this.maxEntries = maxEntries;
         this.keepFirst = keepFirst;
+        this.ranges = ImmutableRangeSet.copyOf(requireNonNull(ranges));
+        for (Range<Long> range : this.ranges.asRanges()) {
+            if (!range.hasLowerBound() || range.lowerBoundType() != BoundType.CLOSED
+                    || range.lowerEndpoint() < 0 || !range.hasUpperBound()
+                    || range.upperBoundType() != BoundType.OPEN) {
+                throw new IllegalArgumentException("Invalid range of log file to filter");
+            }
+        }
+        // The bounds of the only range, when there is one
+        Range<Long> span = this.ranges.isEmpty() ? Range.closedOpen(0L, 0L) : this.ranges.span();
+        this.startOffset = span.lowerEndpoint();
+        this.endOffset = span.upperEndpoint();
+        this.memoryMapped = memoryMapped;
+        if (pool != null && splitSize <= 0) {
+            throw new IllegalArgumentException("Split size must be positive");
+        }
+        this.pool = pool;
+        this.splitSize = splitSize;
+        if (compressed && !this.ranges.equals(ImmutableRangeSet.of(ALL_OFFSETS))) {
+            throw new IllegalArgumentException("Can not read a range of a compressed log file");
+        }
+        this.compressed = compressed;
         if (!Files.isRegularFile(file)) {
             throw new FileNotFoundException(file.toString());
         }
 
+        List<String> groups = stopGroup == null
+                ? filterGroups
+                : ImmutableList.<String>builder().addAll(filterGroups).add(stopGroup).build();
+        List<Object> validationKey = validationKey(logPattern, defaultEntry, groups);
+        if (VALIDATED.contains(validationKey)) {
+            return;
+        }
         Matcher matcher = logPattern.matcher(defaultEntry);
         if (!matcher.matches()) {
             throw new IllegalArgumentException(
                     "Default entry does not match log entry pattern");
         }
         try {
-            for (Map.Entry<String, Predicate<String>> f
-                    : namedGroupFilters.entrySet()) {
-                matcher.group(f.getKey());
+            for (String group : groups) {
+                matcher.group(group);
             }
         }
         catch (IllegalArgumentException e) {
             throw new IllegalArgumentException(
                     "Invalid capturing group in log filter", e);
         }
+        if (VALIDATED.size() < MAX_VALIDATED) {
+            VALIDATED.add(validationKey);
+        }
     }
 
+    private static List<Object> validationKey(Pattern logPattern,
+            String defaultEntry, List<String> groups)
+    {
+        // Patterns are compared by their source, as Pattern has no equals
+        return ImmutableList.of(logPattern.pattern(), logPattern.flags(),
+                defaultEntry, ImmutableSet.copyOf(groups));
+    }
+
+    /**
+     * Stream the entries of the log file which pass the filters.
+     * <p>
+     * Entries are read from the file lazily, as the stream is consumed, so
+     * memory use does not depend on the size of the file, and reading stops
+     * once the capacity is reached or a header to stop at is read; see
+     * {@link Builder#stopAt(String, Predicate)}. The exception is
+     * when a capacity is set without {@link Builder#keepFirst(boolean)}; then
+     * the file is read backwards from the end until that many entries are
+     * found, and those entries are buffered. Compressed files are read
+     * forwards in that case, buffering only the last entries found.
+     * <p>
+     * When filtering in parallel, the entries of as many splits of the file
+     * as the pool has threads are buffered at a time. When filtering several
+     * ranges sequentially with a capacity and without keeping the first
+     * entries, up to that many entries are buffered for each range.
+     * <p>
+     * The returned stream holds the file open and must be closed.
+     * I/O errors encountered while the stream is consumed are thrown as
+     * {@link UncheckedIOException UncheckedIOExceptions}.
+     */
     public Stream<String> streamEntries()
             throws IOException
     {
-        LogEntries logEntryBuilders = new LogEntries();
-        Files.lines(file).forEachOrdered(logEntryBuilders::addLine);
-        return logEntryBuilders.streamEntries().map(StringJoiner::toString);
+        if (maxEntries <= 0 || ranges.isEmpty()) {
+            return Stream.empty();
+        }
+        if (keepFirst || maxEntries == Integer.MAX_VALUE) {
+            return streamForwards(ImmutableList.of(), LogFilter::entryText, LogFilter::streamEntries);
+        }
+        if (compressed) {
+            BufferedReader reader = openCompressed(file);
+            return stream(lastEntries(new ReaderLogEntries<>(reader::readLine, Integer.MAX_VALUE,
+                    ImmutableList.of(), LogFilter::entryText)), reader);
+        }
+        if (pool != null || ranges.asRanges().size() > 1) {
+            List<LogFilter> splits = getSplits();
+            if (splits.size() > 1) {
+                SplitLogEntries<String> entries = new SplitLogEntries<>(splits, LogFilter::streamEntries);
+                return stream(entries, entries::close);
+            }
+        }
+        ReverseLineReader reader = new ReverseLineReader(file, startOffset, endOffset);
+        return stream(new LastLogEntries(reader), reader);
+    }
+
+    /**
+     * Stream the values of the given named groups in the headers of the
+     * entries of the log file which pass the filters, in the order of
+     * {@link #streamEntries()}. Each list holds the values in the order of
+     * the groups, and a value is null if its group did not match.
+     * <p>
+     * The values are captured when the header is matched to be filtered,
+     * so entries are not matched again to read them.
+     *
+     * @throws IllegalArgumentException if a group is not in the pattern
+     * @throws IllegalStateException if only the last entries are wanted,
+     * as those are not read forwards
+     */
+    public Stream<List<String>> streamGroups(List<String> groups)
+            throws IOException
+    {
+        List<String> capturedGroups = checkCapturedGroups(groups);
+        if (maxEntries <= 0 || ranges.isEmpty()) {
+            return Stream.empty();
+        }
+        return streamForwards(capturedGroups,
+                (entry, groupValues) -> Collections.unmodifiableList(Arrays.asList(groupValues)),
+                split -> split.streamGroups(capturedGroups));
+    }
+
+    /**
+     * Stream the entries of the log file which pass the filters, as for
+     * {@link #streamEntries()}, with the values of the given named groups
+     * in their headers, as for {@link #streamGroups(List)}
+     *
+     * @throws IllegalArgumentException if a group is not in the pattern
+     * @throws IllegalStateException if only the last entries are wanted,
+     * as those are not read forwards
+     */
+    public Stream<LogRecord> streamRecords(List<String> groups)
+            throws IOException
+    {
+        List<String> capturedGroups = checkCapturedGroups(groups);
+        if (maxEntries <= 0 || ranges.isEmpty()) {
+            return Stream.empty();
+        }
+        return streamForwards(capturedGroups,
+                (entry, groupValues) -> new LogRecord(entry,
+                        Collections.unmodifiableList(Arrays.asList(groupValues))),
+                split -> split.streamRecords(capturedGroups));
+    }
+
+    private List<String> checkCapturedGroups(List<String> groups)
+    {
+        if (!keepFirst && maxEntries != Integer.MAX_VALUE) {
+            throw new IllegalStateException("Can only read the groups of entries read forwards");
+        }
+        List<String> capturedGroups = ImmutableList.copyOf(groups);
+        Matcher matcher = logPattern.matcher(defaultEntry);
+        matcher.matches();
+        try {
+            for (String group : capturedGroups) {
+                matcher.group(group);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "Invalid capturing group in log filter", e);
+        }
+        return capturedGroups;
+    }
+
+    /**
+     * Stream the entries of the file read forwards, made from their text
+     * and the values of the given groups
+     *
+     * @param splitStreamer Streams the same entries of a split of the file
+     */
+    private <T> Stream<T> streamForwards(List<String> groups, EntryMaker<T> maker,
+            EntryStreamer<T> splitStreamer)
+            throws IOException
+    {
+        if (compressed) {
+            BufferedReader reader = openCompressed(file);
+            return stream(new ReaderLogEntries<>(reader::readLine, maxEntries, groups, maker), reader);
+        }
+        if (pool != null || ranges.asRanges().size() > 1) {
+            List<LogFilter> splits = getSplits();
+            if (splits.size() > 1) {
+                SplitLogEntries<T> entries = new SplitLogEntries<>(splits, splitStreamer);
+                return stream(entries, entries::close);
+            }
+        }
+        if (memoryMapped) {
+            MappedLineReader reader = new MappedLineReader(file, startOffset, endOffset);
+            return stream(new MappedLogEntries<>(reader, maxEntries, groups, maker), reader);
+        }
+        LogLineReader reader = new LogLineReader(file, startOffset, endOffset);
+        return stream(new ReaderLogEntries<>(reader::readLine, maxEntries, groups, maker), reader);
+    }
+
+    /**
+     * Read the first entries of the file which pass the filters, up to the
+     * capacity, and find the offset at which to read the entries after them
+     * <p>
+     * The file is read forwards and sequentially from the start of the
+     * range to filter. The offset returned is the start of the line after
+     * the last entry returned, or the end of the file if it was reached, so
+     * lines appended later to the last entry of the file are not read from
+     * that offset.
+     *
+     * @throws IllegalStateException if the file is compressed, or more than
+     * one range is to be filtered
+     */
+    public Page readPage()
+            throws IOException
+    {
+        if (compressed || ranges.asRanges().size() > 1) {
+            throw new IllegalStateException("Can only page through a single range of an uncompressed file");
+        }
+        if (ranges.isEmpty()) {
+            return new Page(ImmutableList.of(), startOffset);
+        }
+        try (LogLineReader reader = new LogLineReader(file, startOffset, endOffset)) {
+            PageLogEntries entries = new PageLogEntries(reader, maxEntries);
+            ImmutableList.Builder<String> page = ImmutableList.builder();
+            while (entries.hasNext()) {
+                page.add(entries.next());
+            }
+            return new Page(page.build(), entries.getNextOffset());
+        }
+    }
+
+    /**
+     * Entries read by {@link #readPage()}
+     */
+    public static final class Page
+    {
+        private final List<String> entries;
+        private final long nextOffset;
+
+        private Page(List<String> entries, long nextOffset)
+        {
+            this.entries = requireNonNull(entries);
+            this.nextOffset = nextOffset;
+        }
+
+        public List<String> getEntries()
+        {
+            return entries;
+        }
+
+        /**
+         * @return The offset at which to read the entries after these
+         */
+        public long getNextOffset()
+        {
+            return nextOffset;
+        }
+    }
+
+    private static BufferedReader openCompressed(Path file)
+            throws IOException
+    {
+        InputStream input = Files.newInputStream(file);
+        try {
+            return new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(input), UTF_8.newDecoder()));
+        }
+        catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Keep only the last {@link #maxEntries} entries, for files that can
+     * only be read forwards. The entries are read when first needed.
+     */
+    private Iterator<String> lastEntries(Iterator<String> entries)
+    {
+        return new AbstractIterator<String>()
+        {
+            private Iterator<String> lastEntries;
+
+            @Override
+            protected String computeNext()
+            {
+                if (lastEntries == null) {
+                    Deque<String> kept = new ArrayDeque<>();
+                    while (entries.hasNext()) {
+                        if (kept.size() == maxEntries) {
+                            kept.removeFirst();
+                        }
+                        kept.addLast(entries.next());
+                    }
+                    lastEntries = kept.iterator();
+                }
+                return lastEntries.hasNext() ? lastEntries.next() : endOfData();
+            }
+        };
+    }
+
+    /**
+     * Split the ranges to filter into filters for single ranges. When
+     * filtering in parallel, each range is split into consecutive ranges
+     * of about {@link #splitSize} bytes. Each of those after the first
+     * starts at a line matching {@link #logPattern}, so every entry is in
+     * a single split.
+     */
+    private List<LogFilter> getSplits()
+            throws IOException
+    {
+        long fileSize = Files.size(file);
+        List<LogFilter> splits = new ArrayList<>();
+        for (Range<Long> range : ranges.asRanges()) {
+            long rangeStart = range.lowerEndpoint();
+            long rangeEnd = range.upperEndpoint();
+            if (rangeStart >= fileSize && !splits.isEmpty()) {
+                break;
+            }
+            if (pool == null) {
+                splits.add(withRange(rangeStart, rangeEnd));
+                continue;
+            }
+
+            long end = Math.min(rangeEnd, fileSize);
+            List<Long> starts = new ArrayList<>();
+            starts.add(rangeStart);
+            for (long boundary = rangeStart + splitSize; boundary < end; boundary += splitSize) {
+                long start = findEntryStart(boundary, Math.min(boundary + splitSize, end));
+                if (start >= 0) {
+                    starts.add(start);
+                }
+            }
+            for (int i = 0; i < starts.size(); i++) {
+                long splitEnd = i + 1 < starts.size() ? starts.get(i + 1) : rangeEnd;
+                splits.add(withRange(starts.get(i), splitEnd));
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * Get a filter for one range of the file, filtered sequentially
+     */
+    private LogFilter withRange(long start, long end)
+            throws FileNotFoundException
+    {
+        return new LogFilter(file, logPattern, defaultEntry, lineSeparator,
+                namedGroupFilters, entryFilter, stopGroup, stopFilter, maxEntries, keepFirst,
+                ImmutableRangeSet.of(Range.closedOpen(start, end)),
+                memoryMapped, null, 0, false);
+    }
+
+    /**
+     * Find the first line matching {@link #logPattern} that starts at or
+     * after {@code from} and before {@code limit}
+     *
+     * @return The offset of the line, or -1 if there is none
+     */
+    private long findEntryStart(long from, long limit)
+            throws IOException
+    {
+        Matcher matcher = logPattern.matcher("");
+        // Starting a byte early, the first line skipped is the rest of
+        // the line containing that byte, or an empty line if it ends one
+        try (LogLineReader reader = new LogLineReader(file, from - 1, limit)) {
+            if (!reader.skipLine()) {
+                return -1;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (matcher.reset(line).matches()) {
+                    return reader.getLineStart();
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An {@link EntryMaker} for the text of entries
+     */
+    private static String entryText(String entry, String[] groupValues)
+    {
+        return entry;
+    }
+
+    private static <T> Stream<T> stream(Iterator<T> entries, Closeable reader)
+    {
+        return StreamSupport.stream(spliteratorUnknownSize(entries, ORDERED | NONNULL), false)
+                .onClose(() -> closeUnchecked(reader));
+    }
+
+    /**
+     * Checks if the string currently in the given matcher
+     * passes all of the filters. The matcher must already
+     * be in a matching state.
+     */
+    private boolean checkFilters(Matcher matcher)
+    {
+        for (int i = 0; i < filterGroups.size(); i++) {
+            if (!filterPredicates.get(i).test(matcher.group(filterGroups.get(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the filters on the groups the parser can read, in order,
+     * stopping at the first filter on any other group
+     *
+     * @return false if the header in the parser certainly fails the filters
+     */
+    private boolean mayPassFilters(LogHeaderParser parser)
+    {
+        for (int i = 0; i < filterGroups.size(); i++) {
+            String value = parser.getGroup(filterGroups.get(i));
+            if (value == null) {
+                return true;
+            }
+            if (!filterPredicates.get(i).test(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the header in the parser is certainly not one to
+     * stop at
+     */
+    private boolean mayStopAt(LogHeaderParser parser)
+    {
+        if (stopGroup == null) {
+            return false;
+        }
+        String value = parser.getGroup(stopGroup);
+        return value == null || stopFilter.test(value);
+    }
+
+    private static void closeUnchecked(Closeable closeable)
+    {
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public static Builder builder()
@@ -108,8 +602,16 @@ public class LogFilter
         private String defaultEntry;
         private String lineSeparator = System.getProperty("line.separator");
         private ImmutableMap.Builder<String, Predicate<String>> namedGroupFilters;
+        private Predicate<String> entryFilter = entry -> true;
+        private String stopGroup;
+        private Predicate<String> stopFilter;
         private int maxEntries = Integer.MAX_VALUE;
         private boolean keepFirst;
+        private RangeSet<Long> ranges = ImmutableRangeSet.of(ALL_OFFSETS);
+        private boolean memoryMapped;
+        private ForkJoinPool pool;
+        private long splitSize;
+        private boolean compressed;
 
         private Builder()
         {
@@ -121,8 +623,11 @@ public class LogFilter
         {
             return new LogFilter(file, logPattern,
                     defaultEntry, lineSeparator,
-                    namedGroupFilters.build(),
-                    maxEntries, keepFirst);
+                    namedGroupFilters.build(), entryFilter,
+                    stopGroup, stopFilter,
+                    maxEntries, keepFirst,
+                    ranges, memoryMapped,
+                    pool, splitSize, compressed);
         }
 
         public Builder setFile(Path file)
@@ -167,6 +672,33 @@ public class LogFilter
             return this;
         }
 
+        /**
+         * Add a filter to apply to whole entries, after the filters on
+         * their groups. Entries are given to the filter with their lines
+         * joined by the line separator.
+         */
+        public Builder setEntryFilter(Predicate<String> filter)
+        {
+            entryFilter = requireNonNull(filter);
+            return this;
+        }
+
+        /**
+         * Stop reading forwards at the first header whose value of a named
+         * group passes the filter, such as the first date after the end of
+         * a range in a log written in time order. Entries after that header
+         * are not read, even if they would pass the other filters.
+         * <p>
+         * When only the last entries are wanted, the file is read backwards
+         * and this has no effect.
+         */
+        public Builder stopAt(String groupName, Predicate<String> filter)
+        {
+            stopGroup = requireNonNull(groupName);
+            stopFilter = requireNonNull(filter);
+            return this;
+        }
+
         /**
          * Use this string to separate lines in the same entry
          */
@@ -194,112 +726,624 @@ public class LogFilter
             keepFirst = shouldKeepFirst;
             return this;
         }
+
+        /**
+         * Only read the lines starting at or after byte offset {@code start}
+         * and before byte offset {@code end}. Both offsets should be the
+         * start of a log entry, or the bounds of the file.
+         * <p>
+         * If {@code start} is not zero, lines before the first entry in the
+         * range are ignored instead of being given the default entry.
+         */
+        public Builder setRange(long start, long end)
+        {
+            if (start < 0 || end < start) {
+                throw new IllegalArgumentException("Invalid range of log file to filter");
+            }
+            ranges = ImmutableRangeSet.of(Range.closedOpen(start, end));
+            return this;
+        }
+
+        /**
+         * Only read the lines starting in the given ranges of byte offsets,
+         * as if the file were made up of only those ranges. The ranges must
+         * be closed below and open above, and each bound should be the
+         * start of a log entry, or the bounds of the file.
+         * <p>
+         * Lines before the first entry in a range that does not start at
+         * zero are ignored instead of being given the default entry.
+         */
+        public Builder setRanges(RangeSet<Long> ranges)
+        {
+            this.ranges = ImmutableRangeSet.copyOf(ranges);
+            return this;
+        }
+
+        /**
+         * Read the file forwards by memory-mapping it, and skip lines
+         * that can be dropped without decoding them. The results are
+         * the same. Default false.
+         * <p>
+         * Lines are skipped only when the pattern is the default Presto
+         * log pattern; with any other pattern every line is decoded.
+         */
+        public Builder useMemoryMapping(boolean shouldUseMemoryMapping)
+        {
+            memoryMapped = shouldUseMemoryMapping;
+            return this;
+        }
+
+        /**
+         * Split the file into ranges of about {@code splitSize} bytes, and
+         * filter the ranges in parallel on the given pool. The results are
+         * the same, in the same order.
+         */
+        public Builder setParallel(ForkJoinPool pool, long splitSize)
+        {
+            this.pool = requireNonNull(pool);
+            this.splitSize = splitSize;
+            return this;
+        }
+
+        /**
+         * Read the file as gzip-compressed. Compressed files are always
+         * read sequentially from the start, so a range can not be set,
+         * and parallel filtering and memory mapping have no effect.
+         * Default false.
+         */
+        public Builder setCompressed(boolean isCompressed)
+        {
+            compressed = isCompressed;
+            return this;
+        }
     }
 
     /**
-     * Class representing a collection of log entries
+     * Iterator over the log entries read from a file
+     * <p>
+     * Lines are read only as needed to complete the next entry, and
+     * reading stops as soon as {@code limit} entries have been returned,
+     * or at a header to stop at.
      */
-    private final class LogEntries
+    private abstract class LogEntries<T>
+            implements Iterator<T>
     {
-        private Deque<StringJoiner> entries;
-        private Boolean keptLastLine;
-        private Matcher matcher;
+        private final Matcher matcher;
+        private final int limit;
+        private final List<String> groups;
+        private final EntryMaker<T> maker;
+        private final Deque<T> completed = new ArrayDeque<>();
+        StringJoiner current;
+        private String[] currentGroupValues;
+        boolean started;
+        boolean stopped;
+        private boolean finished;
+        private int returned;
 
-        private LogEntries()
+        /**
+         * @param groups The groups whose values in the header of each
+         * entry are given to the maker
+         */
+        private LogEntries(int limit, List<String> groups, EntryMaker<T> maker)
         {
-            entries = new ArrayDeque<>();
+            this.limit = limit;
+            this.groups = requireNonNull(groups);
+            this.maker = requireNonNull(maker);
             matcher = logPattern.matcher("");
+            started = startOffset > 0;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (returned >= limit) {
+                return false;
+            }
+            while (completed.isEmpty() && !finished) {
+                boolean read;
+                try {
+                    read = readLine();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (!read || stopped) {
+                    completeEntry();
+                    finished = true;
+                }
+            }
+            return !completed.isEmpty();
         }
 
-        Stream<StringJoiner> streamEntries()
+        @Override
+        public T next()
         {
-            return entries.stream();
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            returned++;
+            return completed.removeFirst();
         }
 
         /**
-         * Add a line from a log file to a deque of log entries
+         * Read the next line and add it to the entry being built
+         *
+         * @return false if there are no more lines
+         */
+        abstract boolean readLine()
+                throws IOException;
+
+        /**
+         * Add a line from a log file to the entry being built
          * <p>
          * If the string does not match {@link #logPattern}, it will be
          * appended to the previous entry. If there is no previous entry, a new
          * entry will be created (using the default entry) only if the default
          * entry matches the filters.
-         * <p>
-         * If {@link #maxEntries} is non-null and the deque contains that many
-         * entries, the oldest will be removed before the new entry is added.
          */
         void addLine(String line)
         {
             if (matcher.reset(line).matches()) {
-                if (checkFilters(matcher)) {
-                    keptLastLine = addNewEntry(line);
+                completeEntry();
+                if (stopGroup != null && stopFilter.test(matcher.group(stopGroup))) {
+                    stopped = true;
                 }
-                else {
-                    keptLastLine = false;
+                else if (checkFilters(matcher)) {
+                    current = new StringJoiner(lineSeparator).add(line);
+                    currentGroupValues = captureGroups(matcher);
                 }
             }
-            else if (keptLastLine == null) {
+            else if (!started) {
                 if (matcher.reset(defaultEntry).matches() && checkFilters(matcher)) {
-                    keptLastLine = addNewEntry(defaultEntry);
-                    keptLastLine = addToLast(line);
+                    current = new StringJoiner(lineSeparator)
+                            .add(defaultEntry).add(line);
+                    currentGroupValues = captureGroups(matcher);
                 }
-                else {
-                    keptLastLine = false;
+            }
+            else if (current != null) {
+                current.add(line);
+            }
+            started = true;
+        }
+
+        void completeEntry()
+        {
+            if (current != null) {
+                String entry = current.toString();
+                if (entryFilter.test(entry)) {
+                    completed.addLast(maker.make(entry, currentGroupValues));
                 }
+                current = null;
+                currentGroupValues = null;
             }
-            else if (keptLastLine) {
-                keptLastLine = addToLast(line);
+        }
+
+        private String[] captureGroups(Matcher matcher)
+        {
+            if (groups.isEmpty()) {
+                return NO_GROUP_VALUES;
             }
-            else {
-                keptLastLine = false;
+            String[] values = new String[groups.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = matcher.group(groups.get(i));
             }
+            return values;
         }
+    }
 
+    /**
+     * Makes the value returned for an entry
+     */
+    @FunctionalInterface
+    private interface EntryMaker<T>
+    {
         /**
-         * Checks if the string currently in the given matcher
-         * passes all of the filters. The matcher must already
-         * matching state.
+         * @param groupValues The values of the captured groups in the
+         * header of the entry
          */
-        private boolean checkFilters(Matcher matcher)
+        T make(String entry, String[] groupValues);
+    }
+
+    /**
+     * Streams the entries of a filter, such as {@link #streamEntries()}
+     */
+    @FunctionalInterface
+    interface EntryStreamer<T>
+    {
+        Stream<T> stream(LogFilter filter)
+                throws IOException;
+    }
+
+    /**
+     * A source of lines, such as {@link LogLineReader#readLine()}
+     */
+    @FunctionalInterface
+    private interface LineSource
+    {
+        /**
+         * @return The next line, or null if there are no more lines
+         */
+        String readLine()
+                throws IOException;
+    }
+
+    /**
+     * Log entries read forwards from a file, keeping track of the offset
+     * after the last entry returned
+     * <p>
+     * An entry is complete when the header of the next one is read, or at
+     * the end of the file, and entries are returned as soon as they are
+     * complete; so once an entry has been returned, the last line read is
+     * the line after it.
+     */
+    private final class PageLogEntries
+            extends LogEntries<String>
+    {
+        private final LogLineReader reader;
+        private long lastLineStart;
+        private boolean endReached;
+
+        private PageLogEntries(LogLineReader reader, int limit)
+        {
+            super(limit, ImmutableList.of(), LogFilter::entryText);
+            this.reader = requireNonNull(reader);
+            lastLineStart = startOffset;
+        }
+
+        @Override
+        boolean readLine()
+                throws IOException
+        {
+            String line = reader.readLine();
+            if (line == null) {
+                endReached = true;
+                return false;
+            }
+            lastLineStart = reader.getLineStart();
+            addLine(line);
+            return true;
+        }
+
+        long getNextOffset()
+        {
+            return endReached ? reader.getPosition() : lastLineStart;
+        }
+    }
+
+    private final class ReaderLogEntries<T>
+            extends LogEntries<T>
+    {
+        private final LineSource lines;
+
+        private ReaderLogEntries(LineSource lines, int limit, List<String> groups, EntryMaker<T> maker)
+        {
+            super(limit, groups, maker);
+            this.lines = requireNonNull(lines);
+        }
+
+        @Override
+        boolean readLine()
+                throws IOException
+        {
+            String line = lines.readLine();
+            if (line == null) {
+                return false;
+            }
+            addLine(line);
+            return true;
+        }
+    }
+
+    /**
+     * Log entries read from a memory-mapped file
+     * <p>
+     * When the pattern is recognized by {@link LogHeaderParser}, lines that
+     * are sure to be dropped are skipped without being decoded: headers
+     * that fail the filters on their date or level, and the lines that
+     * follow them. Only the remaining lines are decoded and matched
+     * against {@link #logPattern}. Skipped lines are still checked to be
+     * valid UTF-8, so that a malformed line fails the read as it does when
+     * every line is decoded.
+     */
+    private final class MappedLogEntries<T>
+            extends LogEntries<T>
+    {
+        private final MappedLineReader reader;
+        private final LogHeaderParser headerParser;
+
+        private MappedLogEntries(MappedLineReader reader, int limit, List<String> groups, EntryMaker<T> maker)
+        {
+            super(limit, groups, maker);
+            this.reader = requireNonNull(reader);
+            headerParser = LogHeaderParser.supports(logPattern) ? new LogHeaderParser() : null;
+        }
+
+        @Override
+        boolean readLine()
+                throws IOException
         {
-            boolean passing = true;
-            for (ImmutableMap.Entry<String, Predicate<String>> f
-                    : namedGroupFilters.entrySet()) {
-                passing = passing && f.getValue().test(matcher.group(f.getKey()));
+            if (!reader.nextLine()) {
+                return false;
+            }
+            if (headerParser == null || !skipLine()) {
+                addLine(reader.decodeLine());
             }
-            return passing;
+            return true;
         }
 
         /**
-         * @return true if the line addition succeeded
+         * Skip the current line if it would be dropped by
+         * {@link #addLine(String)}, updating the state as it would
+         *
+         * @return false if the line must be decoded and added
          */
-        private boolean addNewEntry(String line)
+        private boolean skipLine()
+                throws IOException
         {
-            if (entries.size() >= maxEntries) {
-                if (keepFirst) {
+            if (headerParser.parse(reader.getBuffer(), reader.getLineStart(), reader.getLineEnd())) {
+                if (mayPassFilters(headerParser) || mayStopAt(headerParser)) {
                     return false;
                 }
-                else if (maxEntries == 0) {
-                    return true;
+                reader.validateLine();
+                completeEntry();
+            }
+            else if (!started || current != null) {
+                return false;
+            }
+            else {
+                reader.validateLine();
+            }
+            started = true;
+            return true;
+        }
+    }
+
+    /**
+     * Iterator over only the last {@link #maxEntries} entries of a file
+     * <p>
+     * The file is read from the end until enough entries are found, so the
+     * time taken depends on the size of the result, not of the file. As
+     * when reading forwards, lines that do not match {@link #logPattern}
+     * belong to the entry above them, and lines above the first entry are
+     * given the default entry.
+     */
+    private final class LastLogEntries
+            implements Iterator<String>
+    {
+        private final ReverseLineReader reader;
+        private final Matcher matcher;
+        private Deque<String> lastEntries;
+
+        private LastLogEntries(ReverseLineReader reader)
+        {
+            this.reader = requireNonNull(reader);
+            matcher = logPattern.matcher("");
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (lastEntries == null) {
+                try {
+                    lastEntries = readLastEntries();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return !lastEntries.isEmpty();
+        }
+
+        @Override
+        public String next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return lastEntries.removeFirst();
+        }
+
+        private Deque<String> readLastEntries()
+                throws IOException
+        {
+            Deque<String> entries = new ArrayDeque<>();
+            // Lines below the most recently read header, last line first
+            Deque<String> continuation = new ArrayDeque<>();
+            while (entries.size() < maxEntries) {
+                String line = reader.readPreviousLine();
+                if (line == null) {
+                    break;
+                }
+                if (matcher.reset(line).matches()) {
+                    if (checkFilters(matcher)) {
+                        addEntry(entries, joinEntry(line, continuation));
+                    }
+                    continuation.clear();
+                }
+                else {
+                    continuation.addFirst(line);
+                }
+            }
+            if (entries.size() < maxEntries && !continuation.isEmpty()
+                    && startOffset == 0
+                    && matcher.reset(defaultEntry).matches()
+                    && checkFilters(matcher)) {
+                addEntry(entries, joinEntry(defaultEntry, continuation));
+            }
+            return entries;
+        }
+
+        private void addEntry(Deque<String> entries, String entry)
+        {
+            if (entryFilter.test(entry)) {
+                entries.addFirst(entry);
+            }
+        }
+
+        private String joinEntry(String header, Iterable<String> lines)
+        {
+            StringJoiner joiner = new StringJoiner(lineSeparator).add(header);
+            lines.forEach(joiner::add);
+            return joiner.toString();
+        }
+    }
+
+    /**
+     * Iterator over the log entries of a file filtered in splits
+     * <p>
+     * When filtering in parallel, each split is filtered by a task on
+     * {@link #pool}, and no more splits are filtered ahead of the consumer
+     * than the pool has threads. Otherwise each split is read as the
+     * consumer reaches it. When only the last entries are wanted, splits
+     * are filtered from the end of the file until enough entries are found.
+     */
+    private final class SplitLogEntries<T>
+            implements Iterator<T>, Closeable
+    {
+        private final List<LogFilter> splits;
+        private final EntryStreamer<T> streamer;
+        private final boolean fromEnd;
+        private final Deque<ForkJoinTask<List<T>>> running = new ArrayDeque<>();
+        private volatile boolean closed;
+        private int submitted;
+        private Iterator<T> current = Collections.emptyIterator();
+        private Stream<T> currentStream;
+        private boolean collectedLast;
+        private int returned;
+
+        private SplitLogEntries(List<LogFilter> splits, EntryStreamer<T> streamer)
+        {
+            fromEnd = !keepFirst && maxEntries != Integer.MAX_VALUE;
+            this.splits = fromEnd ? Lists.reverse(splits) : splits;
+            this.streamer = requireNonNull(streamer);
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (fromEnd) {
+                if (!collectedLast) {
+                    current = collectLastEntries().iterator();
+                    collectedLast = true;
+                }
+                return current.hasNext();
+            }
+            if (returned >= maxEntries) {
+                return false;
+            }
+            while (!current.hasNext()) {
+                if (!nextSplit()) {
+                    return false;
                 }
-                entries.removeFirst();
             }
-            StringJoiner joiner = new StringJoiner(lineSeparator);
-            joiner.add(line);
-            entries.addLast(joiner);
             return true;
         }
 
+        @Override
+        public T next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            returned++;
+            return current.next();
+        }
+
+        /**
+         * Stop filtering splits that have not been finished
+         */
+        @Override
+        public void close()
+        {
+            closed = true;
+            running.forEach(task -> task.cancel(false));
+            running.clear();
+            closeCurrentStream();
+        }
+
         /**
-         * @return true if the line addition succeeded
-         * (equivalently, true if any entries already exist)
+         * Move on to the entries of the next split
+         *
+         * @return false if there are no more splits
          */
-        private boolean addToLast(String line)
+        private boolean nextSplit()
         {
-            boolean entriesExist = !entries.isEmpty();
-            if (entriesExist) {
-                entries.getLast().add(line);
+            closeCurrentStream();
+            if (pool != null) {
+                List<T> entries = nextSplitEntries();
+                current = entries == null ? Collections.emptyIterator() : entries.iterator();
+                return entries != null;
+            }
+            if (submitted == splits.size()) {
+                return false;
+            }
+            try {
+                currentStream = streamer.stream(splits.get(submitted++));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            current = currentStream.iterator();
+            return true;
+        }
+
+        private void closeCurrentStream()
+        {
+            if (currentStream != null) {
+                currentStream.close();
+                currentStream = null;
+            }
+        }
+
+        /**
+         * @return The entries of the next split, or null if there are none
+         */
+        private List<T> nextSplitEntries()
+        {
+            // Tasks on the pool can not be interrupted, so check between splits
+            if (Thread.currentThread().isInterrupted()) {
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted while filtering log file"));
+            }
+            if (pool == null) {
+                return submitted < splits.size() ? collectEntries(splits.get(submitted++)) : null;
+            }
+            while (running.size() < pool.getParallelism() && submitted < splits.size()) {
+                LogFilter split = splits.get(submitted++);
+                running.addLast(pool.submit(() -> collectEntries(split)));
+            }
+            ForkJoinTask<List<T>> task = running.pollFirst();
+            return task == null ? null : task.join();
+        }
+
+        private Deque<T> collectLastEntries()
+        {
+            Deque<T> entries = new ArrayDeque<>();
+            while (entries.size() < maxEntries) {
+                List<T> splitEntries = nextSplitEntries();
+                if (splitEntries == null) {
+                    break;
+                }
+                for (int i = splitEntries.size() - 1; i >= 0 && entries.size() < maxEntries; i--) {
+                    entries.addFirst(splitEntries.get(i));
+                }
+            }
+            close();
+            return entries;
+        }
+
+        private List<T> collectEntries(LogFilter split)
+        {
+            List<T> entries = new ArrayList<>();
+            try (Stream<T> stream = streamer.stream(split)) {
+                Iterator<T> iterator = stream.iterator();
+                while (!closed && iterator.hasNext()) {
+                    entries.add(iterator.next());
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            return entriesExist;
+            return entries;
         }
     }
 }
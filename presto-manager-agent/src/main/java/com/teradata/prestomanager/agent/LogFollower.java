@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static com.teradata.prestomanager.common.ServerSentEvents.writeComment;
+import static com.teradata.prestomanager.common.ServerSentEvents.writeEvent;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Streams the entries appended to a log file as server-sent events
+ * <p>
+ * Each entry is sent as an event whose data is the entry as a JSON string.
+ * The file is checked for new data whenever {@link LogWatcher} reports a
+ * change, and at least once every poll interval. An entry is sent once
+ * the next entry starts, or once the file has not grown for the poll
+ * interval, so the lines written after a header are sent with it.
+ * <p>
+ * If the file is truncated or replaced, as when it is rotated, the new
+ * file is followed from its start. A comment is sent when nothing else
+ * has been sent for a while, so that a client that has gone away is
+ * noticed.
+ */
+final class LogFollower
+{
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    private static final int SCAN_BUFFER_SIZE = 8192;
+
+    private final LogFilter.Builder filterBuilder;
+    private final Path file;
+    private final Pattern logPattern;
+    private final LogWatcher watcher;
+    private final long pollMillis;
+    private final int initialEntries;
+
+    /**
+     * @param filterBuilder A builder for filters of the file, which will
+     * be modified
+     * @param initialEntries The number of existing entries to send before
+     * following the file
+     */
+    LogFollower(LogFilter.Builder filterBuilder, Path file, Pattern logPattern,
+            LogWatcher watcher, long pollMillis, int initialEntries)
+    {
+        this.filterBuilder = requireNonNull(filterBuilder);
+        this.file = requireNonNull(file);
+        this.logPattern = requireNonNull(logPattern);
+        this.watcher = requireNonNull(watcher);
+        this.pollMillis = pollMillis;
+        this.initialEntries = initialEntries;
+    }
+
+    /**
+     * Follow the file until writing to the output fails, as when the
+     * client disconnects, or the thread is interrupted
+     */
+    void follow(OutputStream output)
+            throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, UTF_8));
+        Path fileName = file.getFileName();
+        long changeCount = watcher.getChangeCount(fileName);
+
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Object fileKey = attributes.fileKey();
+        long size = attributes.size();
+        long position = findCompleteLinesEnd(0, size);
+        if (initialEntries > 0) {
+            writeEntries(writer, filterBuilder.setRange(0, position)
+                    .setCapacity(initialEntries).keepFirst(false));
+        }
+        writeComment(writer, "following " + fileName);
+        writer.flush();
+
+        filterBuilder.setCapacity(Integer.MAX_VALUE).keepFirst(true);
+        long lastGrowth = System.nanoTime();
+        long lastWrite = lastGrowth;
+        try {
+            while (true) {
+                changeCount = watcher.awaitChange(fileName, changeCount, pollMillis);
+                long now = System.nanoTime();
+                long end = position;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (!Objects.equals(attributes.fileKey(), fileKey) || attributes.size() < position) {
+                        fileKey = attributes.fileKey();
+                        position = 0;
+                        end = 0;
+                        size = 0;
+                    }
+                    if (attributes.size() != size) {
+                        size = attributes.size();
+                        lastGrowth = now;
+                    }
+                    boolean quiet = now - lastGrowth >= MILLISECONDS.toNanos(pollMillis);
+                    end = findEntriesEnd(position, size, quiet);
+                    if (end > position) {
+                        writeEntries(writer, filterBuilder.setRange(position, end));
+                    }
+                }
+                catch (NoSuchFileException | FileNotFoundException e) {
+                    // The file has been rotated, and the new file not yet created
+                    continue;
+                }
+
+                if (end > position) {
+                    position = end;
+                    writer.flush();
+                    lastWrite = now;
+                }
+                else if (now - lastWrite >= MILLISECONDS.toNanos(HEARTBEAT_MILLIS)) {
+                    writeComment(writer, "heartbeat");
+                    writer.flush();
+                    lastWrite = now;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Find how much of the data after {@code position} holds entries that
+     * can be sent: those followed by another entry, or every complete line
+     * if the file has stopped growing
+     *
+     * @return The offset of the end of those entries
+     */
+    private long findEntriesEnd(long position, long size, boolean quiet)
+            throws IOException
+    {
+        long completeEnd = findCompleteLinesEnd(position, size);
+        if (quiet || completeEnd == position) {
+            return completeEnd;
+        }
+        long lastEntryStart = position;
+        Matcher matcher = logPattern.matcher("");
+        try (LogLineReader reader = new LogLineReader(file, position, completeEnd)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (reader.getLineStart() > position && matcher.reset(line).matches()) {
+                    lastEntryStart = reader.getLineStart();
+                }
+            }
+        }
+        return lastEntryStart;
+    }
+
+    /**
+     * Find the end of the last line break in a range of the file, so that
+     * a line still being written is not read
+     *
+     * @return The offset after the line break, or {@code start} if there
+     * is none
+     */
+    private long findCompleteLinesEnd(long start, long end)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            long blockEnd = Math.min(end, channel.size());
+            while (blockEnd > start) {
+                long blockStart = Math.max(start, blockEnd - SCAN_BUFFER_SIZE);
+                buffer.clear().limit((int) (blockEnd - blockStart));
+                while (buffer.hasRemaining() && channel.read(buffer, blockStart + buffer.position()) >= 0) {
+                    // Keep reading until the block is full
+                }
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    byte b = buffer.get(i);
+                    if (b == '\n' || b == '\r') {
+                        return blockStart + i + 1;
+                    }
+                }
+                blockEnd = blockStart;
+            }
+        }
+        return start;
+    }
+
+    private static void writeEntries(Writer writer, LogFilter.Builder filterBuilder)
+            throws IOException
+    {
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        try (Stream<String> entries = filterBuilder.build().streamEntries()) {
+            Iterator<String> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                writeEvent(writer, '"' + new String(encoder.quoteAsString(iterator.next())) + '"');
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
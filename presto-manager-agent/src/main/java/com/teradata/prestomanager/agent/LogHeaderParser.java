@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import java.nio.ByteBuffer;
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes the header lines of Presto's log format from their UTF-8 bytes
+ * <p>
+ * A line is accepted exactly when it would match {@link #PATTERN}, and the
+ * "date" and "level" groups can be read without decoding the rest of the
+ * line. Invalid UTF-8 is not detected here; lines that are skipped without
+ * being decoded are checked with {@link MappedLineReader#validateLine()}.
+ */
+final class LogHeaderParser
+{
+    static final String PATTERN = "^(?<date>[0-9]{4}-[0-9]{2}-[0-9]{2}" +
+            "T[0-9]{2}:[0-9]{2}:[0-9]{2}(\\.[0-9]{3})?[+-][0-9]{4})" +
+            "\t(?<level>[A-Z]+)\t(?<thread>[^\t]+)\t(?<class>[^\t]+)" +
+            "\t(?<message>.*)$";
+
+    private static final String DATE_GROUP = "date";
+    private static final String LEVEL_GROUP = "level";
+
+    /**
+     * The start of a date, with '0' standing for any digit
+     */
+    private static final String DATE_TEMPLATE = "0000-00-00T00:00:00";
+
+    private ByteBuffer buffer;
+    private int dateStart;
+    private int dateEnd;
+    private int levelStart;
+    private int levelEnd;
+
+    /**
+     * Check if a pattern is the one recognized by this parser
+     */
+    static boolean supports(Pattern pattern)
+    {
+        return pattern.flags() == 0 && PATTERN.equals(pattern.pattern());
+    }
+
+    /**
+     * Parse the line in the given range of a buffer
+     *
+     * @return true if the line is a header
+     */
+    boolean parse(ByteBuffer buffer, int start, int end)
+    {
+        this.buffer = buffer;
+        int length = DATE_TEMPLATE.length();
+        if (end - start < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char expected = DATE_TEMPLATE.charAt(i);
+            byte b = buffer.get(start + i);
+            if (expected == '0' ? !isDigit(b) : b != expected) {
+                return false;
+            }
+        }
+
+        int i = start + length;
+        if (i < end && buffer.get(i) == '.') {
+            if (!isDigits(i + 1, 3, end)) {
+                return false;
+            }
+            i += 4;
+        }
+        if (i >= end || (buffer.get(i) != '+' && buffer.get(i) != '-')
+                || !isDigits(i + 1, 4, end)) {
+            return false;
+        }
+        i += 5;
+        dateStart = start;
+        dateEnd = i;
+
+        if (i >= end || buffer.get(i) != '\t') {
+            return false;
+        }
+        i++;
+        levelStart = i;
+        while (i < end && buffer.get(i) >= 'A' && buffer.get(i) <= 'Z') {
+            i++;
+        }
+        levelEnd = i;
+        if (i == levelStart || i >= end || buffer.get(i) != '\t') {
+            return false;
+        }
+        i++;
+
+        // The thread and class: each at least one byte, followed by a tab
+        for (int field = 0; field < 2; field++) {
+            int fieldStart = i;
+            while (i < end && buffer.get(i) != '\t') {
+                i++;
+            }
+            if (i == fieldStart || i >= end) {
+                return false;
+            }
+            i++;
+        }
+
+        // The message: any characters other than line terminators. Lines
+        // never contain '\n' or '\r', but may contain the other terminators
+        // recognized by '.', U+0085, U+2028 and U+2029.
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == (byte) 0xC2 && i + 1 < end && buffer.get(i + 1) == (byte) 0x85) {
+                return false;
+            }
+            if (b == (byte) 0xE2 && i + 2 < end && buffer.get(i + 1) == (byte) 0x80
+                    && (buffer.get(i + 2) == (byte) 0xA8 || buffer.get(i + 2) == (byte) 0xA9)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the value of a group in the last header parsed
+     *
+     * @return The value, or null if the group can not be read by this parser
+     */
+    String getGroup(String name)
+    {
+        if (DATE_GROUP.equals(name)) {
+            return asciiString(dateStart, dateEnd);
+        }
+        if (LEVEL_GROUP.equals(name)) {
+            return asciiString(levelStart, levelEnd);
+        }
+        return null;
+    }
+
+    private boolean isDigits(int start, int count, int end)
+    {
+        if (end - start < count) {
+            return false;
+        }
+        for (int i = start; i < start + count; i++) {
+            if (!isDigit(buffer.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b)
+    {
+        return b >= '0' && b <= '9';
+    }
+
+    private String asciiString(int start, int end)
+    {
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) buffer.get(start + i);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Counts log entries by the values of named groups of their headers, and
+ * optionally by the interval of time they are in
+ * <p>
+ * Only the counts are kept, so any number of entries can be counted in
+ * memory that depends on the number of distinct keys. Entries are counted
+ * from the values of the groups captured by {@link LogFilter#streamGroups},
+ * so their headers are not matched again.
+ */
+final class LogHistogram
+{
+    static final String TIME_FIELD = "time";
+    static final String COUNT_FIELD = "count";
+
+    // Fixed width, so that times sort as strings in time order
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    // Parts of keys at the same position are all times or all strings
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Comparator<Object> KEY_PART_ORDER = (Comparator) Ordering.natural().nullsFirst();
+
+    private final ToLongFunction<String> dateParser;
+    private final List<String> groups;
+    private final List<String> capturedGroups;
+    private final long intervalMillis;
+    private final int maxKeys;
+    private final Map<List<Object>, long[]> counts = new HashMap<>();
+
+    /**
+     * @param groups The names of the groups to count by
+     * @param intervalMillis The length of the intervals to count by, or
+     * zero to not count by time
+     * @param maxKeys The maximum number of distinct keys to count
+     */
+    LogHistogram(String dateGroup, ToLongFunction<String> dateParser,
+            List<String> groups, long intervalMillis, int maxKeys)
+    {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Interval can not be negative");
+        }
+        this.dateParser = requireNonNull(dateParser);
+        this.groups = ImmutableList.copyOf(groups);
+        this.capturedGroups = intervalMillis > 0
+                ? ImmutableList.<String>builder().add(requireNonNull(dateGroup)).addAll(groups).build()
+                : this.groups;
+        this.intervalMillis = intervalMillis;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @return The groups whose values are given to {@link #add(List)},
+     * in order
+     */
+    List<String> getCapturedGroups()
+    {
+        return capturedGroups;
+    }
+
+    /**
+     * Count an entry
+     *
+     * @param groupValues The values of the {@link #getCapturedGroups()
+     * captured groups} in the header of the entry
+     * @throws TooManyKeysException if there are too many distinct keys
+     */
+    void add(List<String> groupValues)
+    {
+        // Not toArray(), which may return a String[] that can not hold a time
+        Object[] key = groupValues.toArray(new Object[groupValues.size()]);
+        if (intervalMillis > 0) {
+            key[0] = Math.floorDiv(dateParser.applyAsLong(groupValues.get(0)), intervalMillis) * intervalMillis;
+        }
+        List<Object> keyList = Arrays.asList(key);
+        long[] count = counts.get(keyList);
+        if (count == null) {
+            if (counts.size() >= maxKeys) {
+                throw new TooManyKeysException(maxKeys);
+            }
+            count = new long[1];
+            counts.put(keyList, count);
+        }
+        count[0]++;
+    }
+
+    /**
+     * @return The counts, ordered by key, each with the start of its
+     * interval in UTC (if counting by time), the values of the groups, and
+     * the number of entries
+     */
+    List<Map<String, Object>> getRows()
+    {
+        List<List<Object>> keys = new ArrayList<>(counts.keySet());
+        keys.sort(Ordering.from(KEY_PART_ORDER).lexicographical());
+
+        List<Map<String, Object>> rows = new ArrayList<>(keys.size());
+        for (List<Object> key : keys) {
+            // Group values may be null, so ImmutableMap can not be used
+            Map<String, Object> row = new LinkedHashMap<>();
+            int i = 0;
+            if (intervalMillis > 0) {
+                row.put(TIME_FIELD, TIME_FORMAT.format(Instant.ofEpochMilli((Long) key.get(i++))));
+            }
+            for (String group : groups) {
+                row.put(group, key.get(i++));
+            }
+            row.put(COUNT_FIELD, counts.get(key)[0]);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Thrown when an entry would be counted under a new key, and there are
+     * already as many keys as can be counted
+     */
+    static final class TooManyKeysException
+            extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private TooManyKeysException(int maxKeys)
+        {
+            super("More than " + maxKeys + " distinct keys");
+        }
+    }
+}
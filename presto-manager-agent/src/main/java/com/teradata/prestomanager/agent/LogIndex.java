@@ -0,0 +1,314 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import io.airlift.log.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A sparse index from the times of log entries to their offsets in a file
+ * <p>
+ * The offset and time of every {@code interval}th entry are recorded. The
+ * index is saved to disk, and brought up to date by reading only the data
+ * appended to the log since the last update. If the log is truncated or
+ * replaced, the index is rebuilt.
+ * <p>
+ * Lookups assume that entries are in time order, as Presto writes them.
+ */
+@ThreadSafe
+final class LogIndex
+{
+    private static final Logger LOG = Logger.get(LogIndex.class);
+
+    private static final int MAGIC = 0x504d4c49;
+    private static final int VERSION = 1;
+
+    private final Path logFile;
+    private final Path indexFile;
+    private final Pattern logPattern;
+    private final String dateGroup;
+    private final ToLongFunction<String> dateParser;
+    private final int interval;
+
+    @GuardedBy("this")
+    private boolean loaded;
+    @GuardedBy("this")
+    private LogFileIdentity identity;
+    /**
+     * Offset of the first line that has not been indexed
+     */
+    @GuardedBy("this")
+    private long indexedLength;
+    @GuardedBy("this")
+    private int entriesSincePoint;
+    @GuardedBy("this")
+    private long[] offsets = new long[16];
+    @GuardedBy("this")
+    private long[] times = new long[16];
+    @GuardedBy("this")
+    private int size;
+
+    /**
+     * @param dateParser Function converting the value of the date group
+     * in a log entry to milliseconds since the epoch
+     */
+    LogIndex(Path logFile, Path indexFile, Pattern logPattern,
+            String dateGroup, ToLongFunction<String> dateParser, int interval)
+    {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Index interval must be positive");
+        }
+        this.logFile = requireNonNull(logFile);
+        this.indexFile = requireNonNull(indexFile);
+        this.logPattern = requireNonNull(logPattern);
+        this.dateGroup = requireNonNull(dateGroup);
+        this.dateParser = requireNonNull(dateParser);
+        this.interval = interval;
+    }
+
+    /**
+     * Index any entries added to the log since the last update
+     */
+    synchronized void update()
+            throws IOException
+    {
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+
+        LogFileIdentity current = LogFileIdentity.of(logFile);
+        if (current.equals(identity)) {
+            return;
+        }
+        if (identity == null || !identity.isPrefixOf(logFile)) {
+            reset();
+        }
+
+        int oldSize = size;
+        indexRange(indexedLength, current.getLength());
+        identity = current;
+        if (size != oldSize) {
+            save();
+        }
+    }
+
+    /**
+     * Find where to start reading to find all entries at or after a time
+     *
+     * @return The offset of an entry before any entries at or after
+     * {@code millis}, or zero
+     */
+    synchronized long findStartOffset(long millis)
+    {
+        // Index of the last point before the given time
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < millis) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low == 0 ? 0 : offsets[low - 1];
+    }
+
+    /**
+     * Find where to stop reading to find all entries at or before a time
+     *
+     * @return The offset of an entry after any entries at or before
+     * {@code millis}, or {@link Long#MAX_VALUE}
+     */
+    synchronized long findEndOffset(long millis)
+    {
+        // Index of the first point after the given time
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] <= millis) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low == size ? Long.MAX_VALUE : offsets[low];
+    }
+
+    @GuardedBy("this")
+    private void indexRange(long start, long end)
+            throws IOException
+    {
+        Matcher matcher = logPattern.matcher("");
+        try (LogLineReader reader = new LogLineReader(logFile, start, end)) {
+            String line = reader.readLine();
+            long lineStart = reader.getLineStart();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null) {
+                    // Leave the last line for the next update, as
+                    // it may not have been completely written yet
+                    indexedLength = lineStart;
+                    break;
+                }
+                if (matcher.reset(line).matches()) {
+                    indexEntry(matcher, lineStart);
+                }
+                line = next;
+                lineStart = reader.getLineStart();
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void indexEntry(Matcher matcher, long offset)
+    {
+        if (size > 0 && ++entriesSincePoint < interval) {
+            return;
+        }
+        long time;
+        try {
+            time = dateParser.applyAsLong(matcher.group(dateGroup));
+        }
+        catch (DateTimeException e) {
+            // Use the next entry with a valid date instead
+            return;
+        }
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+        }
+        offsets[size] = offset;
+        times[size] = time;
+        size++;
+        entriesSincePoint = 0;
+    }
+
+    @GuardedBy("this")
+    private void reset()
+    {
+        identity = null;
+        indexedLength = 0;
+        entriesSincePoint = 0;
+        size = 0;
+    }
+
+    @GuardedBy("this")
+    private void load()
+    {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (input.readInt() != MAGIC
+                    || input.readInt() != VERSION
+                    || !input.readUTF().equals(logPattern.pattern())
+                    || !input.readUTF().equals(dateGroup)
+                    || input.readInt() != interval) {
+                LOG.info("Index %s is for a different log format; rebuilding", indexFile);
+                return;
+            }
+            LogFileIdentity savedIdentity = LogFileIdentity.readFrom(input);
+            long savedLength = input.readLong();
+            int savedEntries = input.readInt();
+            int savedSize = input.readInt();
+            long[] savedOffsets = new long[Math.max(savedSize, 16)];
+            long[] savedTimes = new long[Math.max(savedSize, 16)];
+            for (int i = 0; i < savedSize; i++) {
+                savedOffsets[i] = input.readLong();
+                savedTimes[i] = input.readLong();
+            }
+
+            identity = savedIdentity;
+            indexedLength = savedLength;
+            entriesSincePoint = savedEntries;
+            offsets = savedOffsets;
+            times = savedTimes;
+            size = savedSize;
+        }
+        catch (NoSuchFileException e) {
+            // The index has not been built yet
+        }
+        catch (IOException e) {
+            LOG.warn(e, "Could not read log index %s; rebuilding", indexFile);
+        }
+    }
+
+    @GuardedBy("this")
+    private void save()
+    {
+        Path temp = null;
+        try {
+            Files.createDirectories(indexFile.getParent());
+            temp = Files.createTempFile(indexFile.getParent(),
+                    indexFile.getFileName().toString(), ".tmp");
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeUTF(logPattern.pattern());
+                output.writeUTF(dateGroup);
+                output.writeInt(interval);
+                identity.writeTo(output);
+                output.writeLong(indexedLength);
+                output.writeInt(entriesSincePoint);
+                output.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    output.writeLong(offsets[i]);
+                    output.writeLong(times[i]);
+                }
+            }
+            Files.move(temp, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            // The index still works in memory
+            LOG.warn(e, "Could not save log index %s", indexFile);
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path file)
+    {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            }
+            catch (IOException e) {
+                LOG.debug(e, "Could not delete %s", file);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads the lines of a region of a file, keeping track of where each
+ * line starts
+ * <p>
+ * Lines are split and decoded as by {@link java.io.BufferedReader#readLine()}
+ * on a UTF-8 file: a line is terminated by "\n", "\r", or "\r\n", and an
+ * empty last line is not returned.
+ */
+final class LogLineReader
+        implements Closeable
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private final CharsetDecoder decoder = UTF_8.newDecoder();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition;
+    private int bufferLimit;
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    /**
+     * Offset in the file of the next byte in the buffer
+     */
+    private long offset;
+    private long lineStart = -1;
+    private boolean skipLineFeed;
+
+    /**
+     * Read the lines starting at or after {@code start} and before
+     * {@code end}. The start offset should be the start of a line.
+     */
+    LogLineReader(Path file, long start, long end)
+            throws IOException
+    {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range of file to read");
+        }
+        this.channel = FileChannel.open(requireNonNull(file), READ);
+        this.end = end;
+        this.offset = start;
+    }
+
+    /**
+     * @return The next line, or null if there are no more lines in range
+     */
+    String readLine()
+            throws IOException
+    {
+        if (!findLine()) {
+            return null;
+        }
+        return decoder.decode(ByteBuffer.wrap(line, 0, lineLength)).toString();
+    }
+
+    /**
+     * Skip the next line without decoding it. It need not be valid UTF-8.
+     *
+     * @return false if there are no more lines in range
+     */
+    boolean skipLine()
+            throws IOException
+    {
+        return findLine();
+    }
+
+    /**
+     * Read the bytes of the next line into {@link #line}
+     *
+     * @return false if there are no more lines in range
+     */
+    private boolean findLine()
+            throws IOException
+    {
+        if (skipLineFeed) {
+            skipLineFeed = false;
+            if (fillIfEmpty() && buffer[bufferPosition] == '\n') {
+                bufferPosition++;
+                offset++;
+            }
+        }
+        if (offset >= end) {
+            return false;
+        }
+
+        long start = offset;
+        lineLength = 0;
+        while (fillIfEmpty()) {
+            int i = bufferPosition;
+            while (i < bufferLimit && buffer[i] != '\n' && buffer[i] != '\r') {
+                i++;
+            }
+            appendToLine(bufferPosition, i);
+            offset += i - bufferPosition;
+            if (i < bufferLimit) {
+                skipLineFeed = buffer[i] == '\r';
+                bufferPosition = i + 1;
+                offset++;
+                lineStart = start;
+                return true;
+            }
+            bufferPosition = i;
+        }
+        if (offset == start) {
+            return false;
+        }
+        lineStart = start;
+        return true;
+    }
+
+    /**
+     * @return The offset in the file at which the last line returned
+     * by {@link #readLine()} starts
+     */
+    long getLineStart()
+    {
+        return lineStart;
+    }
+
+    /**
+     * @return The offset in the file after the last line read
+     */
+    long getPosition()
+    {
+        return offset;
+    }
+
+    private void appendToLine(int from, int to)
+    {
+        int count = to - from;
+        if (lineLength + count > line.length) {
+            line = Arrays.copyOf(line, Math.max(lineLength + count, line.length * 2));
+        }
+        System.arraycopy(buffer, from, line, lineLength, count);
+        lineLength += count;
+    }
+
+    /**
+     * @return false if the buffer is empty and the end of the file was reached
+     */
+    private boolean fillIfEmpty()
+            throws IOException
+    {
+        while (bufferPosition == bufferLimit) {
+            int read = channel.read(ByteBuffer.wrap(buffer), offset);
+            if (read < 0) {
+                return false;
+            }
+            bufferPosition = 0;
+            bufferLimit = read;
+        }
+        return true;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+}
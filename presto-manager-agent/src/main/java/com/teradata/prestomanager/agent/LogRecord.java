@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import javax.annotation.Nullable;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A log entry, with the values of the named groups of its header if they
+ * were captured when the entry was read
+ */
+final class LogRecord
+{
+    private final String entry;
+    @Nullable
+    private final List<String> groupValues;
+
+    LogRecord(String entry, @Nullable List<String> groupValues)
+    {
+        this.entry = requireNonNull(entry);
+        this.groupValues = groupValues;
+    }
+
+    /**
+     * @return A record of an entry whose groups were not captured
+     */
+    static LogRecord of(String entry)
+    {
+        return new LogRecord(entry, null);
+    }
+
+    String getEntry()
+    {
+        return entry;
+    }
+
+    /**
+     * @return The values of the groups the entry was read with, in their
+     * order, or null if they were not captured
+     */
+    @Nullable
+    List<String> getGroupValues()
+    {
+        return groupValues;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.teradata.prestomanager.common.LogFormat.DETAILS_FIELD;
+import static com.teradata.prestomanager.common.LogFormat.TIMESTAMP_FIELD;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Writes log entries as JSON objects with the values of the named groups
+ * of their headers, as described by
+ * {@link com.teradata.prestomanager.common.LogFormat#NDJSON}
+ * <p>
+ * The values of the groups are those captured when the entry was read,
+ * if it was read with the groups of {@link #getGroups()}; see
+ * {@link LogFilter#streamRecords(List)}. Otherwise the header of the entry
+ * is matched here. Either way, clients do not need to parse the entries
+ * again.
+ */
+final class LogRecordWriter
+{
+    private static final Pattern GROUP_NAME = Pattern.compile("(?<!\\\\)\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private final Matcher matcher;
+    private final ToLongFunction<String> dateParser;
+    private final List<String> groups;
+    private final int dateIndex;
+
+    /**
+     * @param defaultEntry An entry matching the pattern, used to check
+     * which names found in the pattern are those of groups
+     */
+    LogRecordWriter(Pattern logPattern, String defaultEntry,
+            String dateGroup, ToLongFunction<String> dateParser)
+    {
+        this.matcher = logPattern.matcher("");
+        this.dateParser = requireNonNull(dateParser);
+        this.groups = getGroupNames(logPattern, defaultEntry);
+        this.dateIndex = groups.indexOf(requireNonNull(dateGroup));
+        if (dateIndex < 0) {
+            throw new IllegalArgumentException("Log entry pattern has no group named " + dateGroup);
+        }
+    }
+
+    /**
+     * @return The names of the groups written for each entry, in order
+     */
+    List<String> getGroups()
+    {
+        return groups;
+    }
+
+    /**
+     * Write an entry, as returned by {@link LogFilter}, as a JSON object
+     * <p>
+     * The groups of an entry whose header does not match the pattern are
+     * null, and the whole entry is written as its details.
+     */
+    void write(LogRecord record, JsonGenerator generator)
+            throws IOException
+    {
+        String entry = record.getEntry();
+        int headerEnd = 0;
+        while (headerEnd < entry.length() && entry.charAt(headerEnd) != '\r' && entry.charAt(headerEnd) != '\n') {
+            headerEnd++;
+        }
+        List<String> values = record.getGroupValues();
+        if (values == null) {
+            values = matchHeader(entry, headerEnd);
+        }
+        boolean matches = values != null;
+
+        generator.writeStartObject();
+        if (matches) {
+            generator.writeNumberField(TIMESTAMP_FIELD, dateParser.applyAsLong(values.get(dateIndex)));
+        }
+        else {
+            generator.writeNullField(TIMESTAMP_FIELD);
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            generator.writeStringField(groups.get(i), matches ? values.get(i) : null);
+        }
+        if (!matches) {
+            generator.writeStringField(DETAILS_FIELD, entry);
+        }
+        else if (headerEnd < entry.length()) {
+            int detailsStart = headerEnd + 1;
+            if (entry.charAt(headerEnd) == '\r' && detailsStart < entry.length()
+                    && entry.charAt(detailsStart) == '\n') {
+                detailsStart++;
+            }
+            generator.writeStringField(DETAILS_FIELD, entry.substring(detailsStart));
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * @return The values of the groups in the header of the entry, or null
+     * if it does not match the pattern
+     */
+    @Nullable
+    private List<String> matchHeader(String entry, int headerEnd)
+    {
+        if (!matcher.reset(entry).region(0, headerEnd).matches()) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(groups.size());
+        for (String group : groups) {
+            values.add(matcher.group(group));
+        }
+        return values;
+    }
+
+    /**
+     * Find the names of the named groups of a pattern, in order
+     * <p>
+     * Java does not list the groups of a pattern, so names are looked for
+     * in its source, and kept if a match of the pattern has a group with
+     * that name.
+     */
+    private static List<String> getGroupNames(Pattern pattern, String defaultEntry)
+    {
+        Matcher entryMatcher = pattern.matcher(defaultEntry);
+        if (!entryMatcher.matches()) {
+            throw new IllegalArgumentException("Default log entry does not match pattern");
+        }
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        Matcher nameMatcher = GROUP_NAME.matcher(pattern.pattern());
+        while (nameMatcher.find()) {
+            String name = nameMatcher.group(1);
+            try {
+                entryMatcher.group(name);
+                names.add(name);
+            }
+            catch (IllegalArgumentException e) {
+                // Not a group, such as text in a character class
+            }
+        }
+        return names.build();
+    }
+}
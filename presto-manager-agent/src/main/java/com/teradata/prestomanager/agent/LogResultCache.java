@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Caches the last entries of log files returned for queries, so that
+ * repeated queries do not read the whole file again
+ * <p>
+ * Each result is kept with the identity of the file it was read from. If
+ * the file is unchanged, the result is returned as it is. If data has only
+ * been appended to the file, just that data is read, starting from the
+ * last entry of the file, since it may have continued.
+ * <p>
+ * Results are weighed by the characters of the entries they hold, and the
+ * least recently used are dropped once the total is over
+ * {@code maxChars}. Results are computed outside the cache, so a query
+ * made by several requests at once may be computed more than once.
+ */
+@ThreadSafe
+final class LogResultCache
+{
+    private final Pattern logPattern;
+    private final Cache<Key, Result> results;
+
+    LogResultCache(Pattern logPattern, long maxChars)
+    {
+        this.logPattern = requireNonNull(logPattern);
+        this.results = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher((Key key, Result result) -> result.getChars())
+                .build();
+    }
+
+    /**
+     * Get the last entries of a file which pass a query's filters
+     *
+     * @param query The filters of the query, which must be the same for
+     * every request of the same query, and which must have an equals method
+     * @param capacity The number of entries to get
+     * @param reader Reads the last entries of a range of the file which
+     * pass the query's filters
+     */
+    List<String> getLastEntries(Path file, Object query, int capacity, RangeReader reader)
+            throws IOException
+    {
+        Key key = new Key(file.normalize(), query, capacity);
+        Result cached = results.getIfPresent(key);
+        LogFileIdentity identity = LogFileIdentity.of(file);
+        if (cached != null && cached.identity.equals(identity)) {
+            return cached.entries;
+        }
+
+        // Entries starting before the last entry of the file are complete,
+        // and are kept as the head of the next result
+        long headEnd;
+        List<String> head;
+        if (cached != null && cached.identity.isPrefixOf(file)
+                && cached.identity.getLength() <= identity.getLength()) {
+            headEnd = findLastEntryStart(file, cached.headEnd, identity.getLength());
+            head = last(capacity, cached.head,
+                    reader.readLastEntries(cached.headEnd, headEnd, capacity));
+        }
+        else {
+            headEnd = findLastEntryStart(file, 0, identity.getLength());
+            head = reader.readLastEntries(0, headEnd, capacity);
+        }
+        List<String> entries = last(capacity, head,
+                reader.readLastEntries(headEnd, identity.getLength(), capacity));
+
+        results.put(key, new Result(identity, headEnd, head, entries));
+        return entries;
+    }
+
+    /**
+     * Find the start of the last line matching the pattern at or after
+     * {@code start} and before {@code end}
+     *
+     * @return The offset of the line, or {@code start} if there is none
+     */
+    private long findLastEntryStart(Path file, long start, long end)
+            throws IOException
+    {
+        Matcher matcher = logPattern.matcher("");
+        try (ReverseLineReader reader = new ReverseLineReader(file, start, end)) {
+            String line;
+            while ((line = reader.readPreviousLine()) != null) {
+                if (matcher.reset(line).matches()) {
+                    return reader.getLineStart();
+                }
+            }
+        }
+        return start;
+    }
+
+    private static List<String> last(int capacity, List<String> first, List<String> second)
+    {
+        ImmutableList<String> entries = ImmutableList.<String>builder()
+                .addAll(first)
+                .addAll(second)
+                .build();
+        return entries.size() <= capacity
+                ? entries
+                : entries.subList(entries.size() - capacity, entries.size());
+    }
+
+    /**
+     * Reads the last entries of a range of a log file which pass a query's
+     * filters
+     */
+    @FunctionalInterface
+    interface RangeReader
+    {
+        /**
+         * @param start The offset of the start of a line
+         * @param end The offset of the start of a line, or of the end of
+         * the file as it was when it was identified
+         * @param capacity The maximum number of entries to read
+         */
+        List<String> readLastEntries(long start, long end, int capacity)
+                throws IOException;
+    }
+
+    private static final class Key
+    {
+        private final Path file;
+        private final Object query;
+        private final int capacity;
+
+        private Key(Path file, Object query, int capacity)
+        {
+            this.file = requireNonNull(file);
+            this.query = requireNonNull(query);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return capacity == that.capacity
+                    && file.equals(that.file)
+                    && query.equals(that.query);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * file.hashCode() + query.hashCode()) + capacity;
+        }
+    }
+
+    private static final class Result
+    {
+        private final LogFileIdentity identity;
+        /**
+         * Offset of the start of the last entry of the file, where entries
+         * that may not be complete start
+         */
+        private final long headEnd;
+        /**
+         * The last entries starting before {@link #headEnd}
+         */
+        private final List<String> head;
+        private final List<String> entries;
+
+        private Result(LogFileIdentity identity, long headEnd,
+                List<String> head, List<String> entries)
+        {
+            this.identity = requireNonNull(identity);
+            this.headEnd = headEnd;
+            this.head = ImmutableList.copyOf(head);
+            this.entries = ImmutableList.copyOf(entries);
+        }
+
+        /**
+         * @return The number of characters of the entries of both lists;
+         * entries shared by the lists are counted twice
+         */
+        private int getChars()
+        {
+            long chars = 0;
+            for (String entry : head) {
+                chars += entry.length();
+            }
+            for (String entry : entries) {
+                chars += entry.length();
+            }
+            return Ints.saturatedCast(chars);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingInputStream;
+import io.airlift.log.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An index of the words in a log file, for finding the entries that
+ * contain a search without reading the whole file
+ * <p>
+ * The file is divided into blocks of whole entries of about
+ * {@code blockSize} bytes, and the words in each block (see
+ * {@link LogTokens}) are recorded in a Bloom filter. A search only needs
+ * to read the blocks whose filters may contain all of its words, and about
+ * one block in a thousand is read although it does not.
+ * <p>
+ * Blocks are appended to the index file as the log grows, followed by a
+ * record of how much of the log they cover. If the log is truncated or
+ * replaced, the index is rebuilt.
+ */
+@ThreadSafe
+final class LogTokenIndex
+{
+    private static final Logger LOG = Logger.get(LogTokenIndex.class);
+
+    private static final int MAGIC = 0x504d4c54;
+    private static final int VERSION = 1;
+    private static final int BLOCK_RECORD = 1;
+    private static final int COMMIT_RECORD = 2;
+
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+    private static final int MAX_HASHES = 16;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Path logFile;
+    private final Path indexFile;
+    private final Pattern logPattern;
+    private final long blockSize;
+
+    @GuardedBy("this")
+    private boolean loaded;
+    @GuardedBy("this")
+    private LogFileIdentity identity;
+    /**
+     * Offset of the first line that is not in a block
+     */
+    @GuardedBy("this")
+    private long indexedLength;
+    @GuardedBy("this")
+    private List<Block> blocks = new ArrayList<>();
+    /**
+     * Length of the valid part of the index file, or zero if the
+     * file must be rewritten
+     */
+    @GuardedBy("this")
+    private long savedLength;
+    @GuardedBy("this")
+    private int savedBlocks;
+
+    LogTokenIndex(Path logFile, Path indexFile, Pattern logPattern, long blockSize)
+    {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.logFile = requireNonNull(logFile);
+        this.indexFile = requireNonNull(indexFile);
+        this.logPattern = requireNonNull(logPattern);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Index any entries added to the log since the last update
+     */
+    synchronized void update()
+            throws IOException
+    {
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+
+        LogFileIdentity current = LogFileIdentity.of(logFile);
+        if (current.equals(identity)) {
+            return;
+        }
+        if (identity == null || !identity.isPrefixOf(logFile)) {
+            reset();
+        }
+
+        int oldSize = blocks.size();
+        indexRange(indexedLength, current.getLength());
+        identity = current;
+        if (blocks.size() != oldSize) {
+            save();
+        }
+    }
+
+    /**
+     * Find the parts of the log that may contain entries with all of the
+     * given words
+     * <p>
+     * The first block is always included, as the default entry added to
+     * lines at the start of the file is not indexed, as is the end of the
+     * file that is not yet in a block.
+     *
+     * @param tokens Lowercase words, as found by {@link LogTokens}
+     */
+    synchronized RangeSet<Long> findRanges(Collection<String> tokens)
+    {
+        List<long[]> hashes = new ArrayList<>();
+        for (String token : tokens) {
+            hashes.add(hash(token));
+        }
+
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        for (Block block : blocks) {
+            if (block.start == 0 || block.mightContainAll(hashes)) {
+                ranges.add(Range.closedOpen(block.start, block.end));
+            }
+        }
+        ranges.add(Range.closedOpen(indexedLength, Long.MAX_VALUE));
+        return ranges;
+    }
+
+    @GuardedBy("this")
+    private void indexRange(long start, long end)
+            throws IOException
+    {
+        Matcher matcher = logPattern.matcher("");
+        Set<String> tokens = new HashSet<>();
+        long blockStart = start;
+        try (LogLineReader reader = new LogLineReader(logFile, start, end)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A block is only ended once a line after it has been
+                // found, so all of its lines have been completely written
+                long lineStart = reader.getLineStart();
+                if (lineStart - blockStart >= blockSize && matcher.reset(line).matches()) {
+                    blocks.add(Block.of(blockStart, lineStart, tokens));
+                    tokens.clear();
+                    blockStart = lineStart;
+                }
+                LogTokens.addTokens(line, tokens);
+            }
+        }
+        indexedLength = blockStart;
+    }
+
+    private static long[] hash(String token)
+    {
+        ByteBuffer hash = ByteBuffer.wrap(HASH_FUNCTION.hashUnencodedChars(token).asBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        return new long[] {hash.getLong(0), hash.getLong(8)};
+    }
+
+    @GuardedBy("this")
+    private void reset()
+    {
+        identity = null;
+        indexedLength = 0;
+        blocks = new ArrayList<>();
+        savedLength = 0;
+        savedBlocks = 0;
+    }
+
+    @GuardedBy("this")
+    private void load()
+    {
+        try (CountingInputStream counting = new CountingInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile)));
+                DataInputStream input = new DataInputStream(counting)) {
+            if (input.readInt() != MAGIC
+                    || input.readInt() != VERSION
+                    || !input.readUTF().equals(logPattern.pattern())
+                    || input.readLong() != blockSize) {
+                LOG.info("Index %s is for a different log format; rebuilding", indexFile);
+                return;
+            }
+            List<Block> savedBlocks = new ArrayList<>();
+            int record;
+            // Anything after the last commit was not completely written
+            while ((record = input.read()) != -1) {
+                if (record == BLOCK_RECORD) {
+                    savedBlocks.add(Block.readFrom(input));
+                }
+                else if (record == COMMIT_RECORD) {
+                    LogFileIdentity savedIdentity = LogFileIdentity.readFrom(input);
+                    long savedIndexedLength = input.readLong();
+                    if (input.readInt() != savedBlocks.size()) {
+                        throw new IOException("Corrupt commit record");
+                    }
+                    identity = savedIdentity;
+                    indexedLength = savedIndexedLength;
+                    blocks = new ArrayList<>(savedBlocks);
+                    this.savedBlocks = savedBlocks.size();
+                    savedLength = counting.getCount();
+                }
+                else {
+                    throw new IOException("Unknown record type " + record);
+                }
+            }
+        }
+        catch (NoSuchFileException e) {
+            // The index has not been built yet
+        }
+        catch (EOFException e) {
+            LOG.info("Index %s ends with an incomplete update", indexFile);
+        }
+        catch (IOException e) {
+            LOG.warn(e, "Could not read log index %s; rebuilding", indexFile);
+            reset();
+        }
+    }
+
+    /**
+     * Append the new blocks to the index file
+     */
+    @GuardedBy("this")
+    private void save()
+    {
+        try {
+            Files.createDirectories(indexFile.getParent());
+            try (FileChannel channel = FileChannel.open(indexFile, CREATE, WRITE)) {
+                channel.truncate(savedLength);
+                channel.position(savedLength);
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel)));
+                if (savedLength == 0) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeUTF(logPattern.pattern());
+                    output.writeLong(blockSize);
+                }
+                for (Block block : blocks.subList(savedBlocks, blocks.size())) {
+                    output.write(BLOCK_RECORD);
+                    block.writeTo(output);
+                }
+                output.write(COMMIT_RECORD);
+                identity.writeTo(output);
+                output.writeLong(indexedLength);
+                output.writeInt(blocks.size());
+                output.flush();
+                savedLength = channel.position();
+                savedBlocks = blocks.size();
+            }
+        }
+        catch (IOException e) {
+            // The index still works in memory
+            LOG.warn(e, "Could not save log index %s", indexFile);
+            savedLength = 0;
+            savedBlocks = 0;
+        }
+    }
+
+    /**
+     * A range of a log file, with a Bloom filter of the words in it
+     */
+    private static final class Block
+    {
+        private final long start;
+        private final long end;
+        private final int hashCount;
+        private final long[] bits;
+
+        private Block(long start, long end, int hashCount, long[] bits)
+        {
+            this.start = start;
+            this.end = end;
+            this.hashCount = hashCount;
+            this.bits = bits;
+        }
+
+        static Block of(long start, long end, Set<String> tokens)
+        {
+            // The optimal size and number of hashes for the false positive rate
+            int count = Math.max(tokens.size(), 1);
+            double bitsPerToken = -Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2));
+            int words = (int) Math.ceil(count * bitsPerToken / Long.SIZE);
+            int hashCount = (int) Math.min(MAX_HASHES, Math.max(1, Math.round(bitsPerToken * Math.log(2))));
+
+            Block block = new Block(start, end, hashCount, new long[words]);
+            for (String token : tokens) {
+                block.add(hash(token));
+            }
+            return block;
+        }
+
+        private void add(long[] hash)
+        {
+            long bitCount = (long) bits.length * Long.SIZE;
+            long combined = hash[0];
+            for (int i = 0; i < hashCount; i++) {
+                long bit = (combined & Long.MAX_VALUE) % bitCount;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+                combined += hash[1];
+            }
+        }
+
+        private boolean mightContain(long[] hash)
+        {
+            long bitCount = (long) bits.length * Long.SIZE;
+            long combined = hash[0];
+            for (int i = 0; i < hashCount; i++) {
+                long bit = (combined & Long.MAX_VALUE) % bitCount;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+                combined += hash[1];
+            }
+            return true;
+        }
+
+        boolean mightContainAll(List<long[]> hashes)
+        {
+            for (long[] hash : hashes) {
+                if (!mightContain(hash)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void writeTo(DataOutput output)
+                throws IOException
+        {
+            output.writeLong(start);
+            output.writeLong(end);
+            output.writeInt(hashCount);
+            output.writeInt(bits.length);
+            for (long word : bits) {
+                output.writeLong(word);
+            }
+        }
+
+        static Block readFrom(DataInput input)
+                throws IOException
+        {
+            long start = input.readLong();
+            long end = input.readLong();
+            int hashCount = input.readInt();
+            int words = input.readInt();
+            if (start < 0 || end < start || hashCount <= 0 || words <= 0) {
+                throw new IOException("Corrupt block record");
+            }
+            long[] bits = new long[words];
+            for (int i = 0; i < words; i++) {
+                bits[i] = input.readLong();
+            }
+            return new Block(start, end, hashCount, bits);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Splits log text into the words used to search logs
+ * <p>
+ * A word is a run of letters, digits and underscores, compared without
+ * case. Query IDs such as {@code 20170101_000000_00000_abcde} are single
+ * words, and a class name such as {@code java.lang.IllegalStateException}
+ * is made up of the words between its dots.
+ */
+final class LogTokens
+{
+    private LogTokens() {}
+
+    /**
+     * Get the lowercase words in some text
+     */
+    static Set<String> getTokens(CharSequence text)
+    {
+        Set<String> tokens = new HashSet<>();
+        addTokens(text, tokens);
+        return tokens;
+    }
+
+    /**
+     * Add the lowercase words in some text to a collection
+     */
+    static void addTokens(CharSequence text, Collection<String> tokens)
+    {
+        StringBuilder token = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                token.append(Character.toLowerCase(c));
+            }
+            else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+    }
+
+    /**
+     * Get a filter passing the log entries which contain all of the
+     * words in a search
+     */
+    static Predicate<String> containsAll(Set<String> tokens)
+    {
+        Set<String> searchTokens = ImmutableSet.copyOf(tokens);
+        return entry -> getTokens(entry).containsAll(searchTokens);
+    }
+}
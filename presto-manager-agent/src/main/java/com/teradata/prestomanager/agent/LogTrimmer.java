@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Deletes the entries at the start of log files in the background
+ * <p>
+ * The offset of the first entry to keep is found by a binary search over
+ * the dates of the entries, which assumes that they are in time order.
+ * The rest of the file is then moved to its start, and the file is
+ * truncated, so the cost depends only on the size of the entries kept.
+ * <p>
+ * The file is changed in place, rather than replaced, so that a process
+ * appending to it keeps appending to the same file. Data appended while
+ * the file is moved is moved too, and the size of the file is checked
+ * again right before it is truncated, so only data appended between that
+ * check and the truncation can be lost. Only one file is trimmed at a
+ * time.
+ * <p>
+ * While the file is moved, every permit to read logs is held, so no log
+ * is read at the same time. Readers may map the file into memory, and
+ * would fail with an {@link InternalError} rather than an
+ * {@link IOException} if it were truncated under them.
+ */
+@ThreadSafe
+final class LogTrimmer
+{
+    private static final Logger LOG = Logger.get(LogTrimmer.class);
+
+    /**
+     * Size of the range left to a linear scan by the binary search
+     */
+    private static final long SCAN_SIZE = 64 * 1024;
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_RETAINED_JOBS = 100;
+
+    private final Pattern logPattern;
+    private final String dateGroup;
+    private final ToLongFunction<String> dateParser;
+    private final Semaphore readPermits;
+    private final int readers;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("log-trimmer").setDaemon(true).build());
+
+    @GuardedBy("this")
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Job> eldest)
+        {
+            return size() > MAX_RETAINED_JOBS && eldest.getValue().state != State.RUNNING;
+        }
+    };
+
+    /**
+     * @param readPermits The permits taken by readers of logs, all
+     * {@code readers} of which are taken while a file is moved
+     */
+    LogTrimmer(Pattern logPattern, String dateGroup, ToLongFunction<String> dateParser,
+            Semaphore readPermits, int readers)
+    {
+        this.logPattern = requireNonNull(logPattern);
+        this.dateGroup = requireNonNull(dateGroup);
+        this.dateParser = requireNonNull(dateParser);
+        this.readPermits = requireNonNull(readPermits);
+        this.readers = readers;
+    }
+
+    /**
+     * Start deleting the entries of a file before the given time
+     *
+     * @return The ID of the job, for {@link #getStatus(String)}
+     */
+    synchronized String submit(Path file, long keepFromMillis)
+    {
+        String id = UUID.randomUUID().toString();
+        Job job = new Job(file);
+        jobs.put(id, job);
+        executor.execute(() -> run(job, keepFromMillis));
+        return id;
+    }
+
+    /**
+     * @return The state of the job, the file it trims, and once it is done,
+     * the number of bytes deleted or the reason it failed; or null if there
+     * is no job with the given ID
+     */
+    synchronized Map<String, Object> getStatus(String id)
+    {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return null;
+        }
+        State state = job.state;
+        ImmutableMap.Builder<String, Object> status = ImmutableMap.builder();
+        status.put("id", id);
+        status.put("file", job.file.getFileName().toString());
+        status.put("state", state.toString());
+        if (state == State.SUCCEEDED) {
+            status.put("bytesDeleted", job.bytesDeleted);
+        }
+        if (job.message != null) {
+            status.put("message", job.message);
+        }
+        return status.build();
+    }
+
+    private void run(Job job, long keepFromMillis)
+    {
+        try (FileChannel channel = FileChannel.open(job.file, READ, WRITE)) {
+            long cut = findFirstEntryAtOrAfter(job.file, channel.size(), keepFromMillis);
+            readPermits.acquireUninterruptibly(readers);
+            try {
+                moveToStart(channel, cut);
+            }
+            finally {
+                readPermits.release(readers);
+            }
+            finish(job, State.SUCCEEDED, cut, null);
+            LOG.info("Deleted %s bytes of entries from %s", cut, job.file);
+        }
+        catch (IOException e) {
+            LOG.warn(e, "IOException while trimming log file %s", job.file);
+            finish(job, State.FAILED, 0, "IOException while trimming log file");
+        }
+        catch (DateTimeParseException e) {
+            LOG.warn(e, "Date in log file %s has invalid format", job.file);
+            finish(job, State.FAILED, 0, "Date in log file has invalid format");
+        }
+    }
+
+    private static void finish(Job job, State state, long bytesDeleted, String message)
+    {
+        job.bytesDeleted = bytesDeleted;
+        job.message = message;
+        job.state = state;
+    }
+
+    /**
+     * Find the offset of the first entry at or after a time, assuming
+     * the entries are in time order
+     *
+     * @return The offset of the entry, or {@code size} if there is none
+     */
+    private long findFirstEntryAtOrAfter(Path file, long size, long millis)
+            throws IOException
+    {
+        // Entries starting before low are all before the time
+        long low = 0;
+        long high = size;
+        while (high - low > SCAN_SIZE) {
+            long middle = (low + high) >>> 1;
+            EntryStart entry = findEntry(file, middle, high, Long.MIN_VALUE);
+            if (entry == null || entry.millis >= millis) {
+                high = middle;
+            }
+            else {
+                low = entry.offset;
+            }
+        }
+        EntryStart entry = findEntry(file, low, size, millis);
+        return entry == null ? size : entry.offset;
+    }
+
+    /**
+     * Find the first entry starting after the line at {@code start}, or at
+     * it if it is zero, and before {@code end}, with a time at or after
+     * {@code millis}
+     */
+    private EntryStart findEntry(Path file, long start, long end, long millis)
+            throws IOException
+    {
+        Matcher matcher = logPattern.matcher("");
+        try (LogLineReader reader = new LogLineReader(file, start, end)) {
+            if (start > 0) {
+                // The first line may be the end of a line before start
+                reader.skipLine();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (matcher.reset(line).matches()) {
+                    long lineMillis = dateParser.applyAsLong(matcher.group(dateGroup));
+                    if (lineMillis >= millis) {
+                        return new EntryStart(reader.getLineStart(), lineMillis);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Move the data in the file after {@code offset} to its start, and
+     * truncate it to the length of that data
+     * <p>
+     * Data is copied until the end of the data read is the size of the
+     * file, so that data appended during the copy is copied as well.
+     */
+    private static void moveToStart(FileChannel channel, long offset)
+            throws IOException
+    {
+        if (offset == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        long readPosition = offset;
+        long writePosition = 0;
+        while (readPosition < channel.size()) {
+            buffer.clear();
+            int count = channel.read(buffer, readPosition);
+            if (count <= 0) {
+                // The file was truncated by another process
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                writePosition += channel.write(buffer, writePosition);
+            }
+            readPosition += count;
+        }
+        channel.truncate(writePosition);
+    }
+
+    private enum State
+    {
+        RUNNING, SUCCEEDED, FAILED
+    }
+
+    private static final class Job
+    {
+        private final Path file;
+        private volatile long bytesDeleted;
+        private volatile String message;
+        // Written last, so the other fields are visible once it is done
+        private volatile State state = State.RUNNING;
+
+        private Job(Path file)
+        {
+            this.file = requireNonNull(file);
+        }
+    }
+
+    private static final class EntryStart
+    {
+        private final long offset;
+        private final long millis;
+
+        private EntryStart(long offset, long millis)
+        {
+            this.offset = offset;
+            this.millis = millis;
+        }
+    }
+}
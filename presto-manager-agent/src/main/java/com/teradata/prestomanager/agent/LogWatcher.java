@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import io.airlift.log.Logger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Notifies threads waiting for files in a directory to change
+ * <p>
+ * A single {@link WatchService} serves every waiting thread. If the
+ * directory can not be watched, waiting threads are only woken by their
+ * timeouts, so callers should always check for changes themselves.
+ */
+@ThreadSafe
+final class LogWatcher
+{
+    private static final Logger LOG = Logger.get(LogWatcher.class);
+
+    private final Path directory;
+    private final WatchService watchService;
+
+    @GuardedBy("this")
+    private final Map<Path, Long> changeCounts = new HashMap<>();
+    @GuardedBy("this")
+    private long overflows;
+
+    LogWatcher(Path directory)
+    {
+        this.directory = directory;
+        WatchService service = null;
+        try {
+            service = directory.getFileSystem().newWatchService();
+            directory.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            LOG.warn(e, "Could not watch %s for changes; polling instead", directory);
+            closeQuietly(service);
+            service = null;
+        }
+        watchService = service;
+        if (watchService != null) {
+            Thread thread = new Thread(this::watch, "log-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return A number that changes whenever the file with the given name
+     * in the directory is created or modified
+     */
+    synchronized long getChangeCount(Path fileName)
+    {
+        return overflows + changeCounts.getOrDefault(fileName, 0L);
+    }
+
+    /**
+     * Wait until the change count of a file differs from the given count,
+     * or until the timeout elapses
+     *
+     * @return The current change count
+     */
+    synchronized long awaitChange(Path fileName, long count, long timeoutMillis)
+            throws InterruptedException
+    {
+        long deadline = System.nanoTime() + MILLISECONDS.toNanos(timeoutMillis);
+        long current;
+        while ((current = getChangeCount(fileName)) == count) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            NANOSECONDS.timedWait(this, remaining);
+        }
+        return current;
+    }
+
+    /**
+     * Stop watching the directory. Waiting threads are then only woken by
+     * their timeouts.
+     */
+    void close()
+    {
+        closeQuietly(watchService);
+    }
+
+    private void watch()
+    {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                synchronized (this) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            overflows++;
+                        }
+                        else {
+                            changeCounts.merge((Path) event.context(), 1L, Long::sum);
+                        }
+                    }
+                    notifyAll();
+                }
+                if (!key.reset()) {
+                    LOG.warn("Stopped watching %s for changes; polling instead", directory);
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            LOG.debug(e, "Stopped watching %s for changes", directory);
+        }
+    }
+
+    private static void closeQuietly(WatchService service)
+    {
+        if (service != null) {
+            try {
+                service.close();
+            }
+            catch (IOException e) {
+                LOG.debug(e, "Could not close watch service");
+            }
+        }
+    }
+}
@@ -13,35 +13,93 @@
  */
 package com.teradata.prestomanager.agent;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.teradata.prestomanager.common.LogCursor;
+import com.teradata.prestomanager.common.LogFormat;
+import com.teradata.prestomanager.common.LogTimestamps;
 import io.airlift.log.Logger;
 
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.time.chrono.IsoChronology;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.Iterators.peekingIterator;
 import static com.teradata.prestomanager.common.SimpleResponses.badRequest;
+import static com.teradata.prestomanager.common.SimpleResponses.gone;
 import static com.teradata.prestomanager.common.SimpleResponses.notFound;
 import static com.teradata.prestomanager.common.SimpleResponses.serverError;
+import static com.teradata.prestomanager.common.SimpleResponses.serviceUnavailable;
 import static java.util.Objects.requireNonNull;
+import static java.util.Spliterator.NONNULL;
+import static java.util.Spliterator.ORDERED;
+import static java.util.Spliterators.spliteratorUnknownSize;
+import static java.util.concurrent.ForkJoinPool.defaultForkJoinWorkerThreadFactory;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.ws.rs.core.Response.Status.ACCEPTED;
 
 /**
  * Utility class managing retrieval and deletion of Presto logs
@@ -58,12 +116,39 @@ public class LogsHandler
             .appendPattern("Z")
             .toFormatter().withChronology(IsoChronology.INSTANCE);
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
     private static final String DATE_GROUP = "date";
     private static final String LEVEL_GROUP = "level";
 
+    private static final int MAX_HISTOGRAM_KEYS = 100_000;
+    private static final int MAX_CACHED_ENTRIES = 10_000;
+    private static final Range<Long> ALL_OFFSETS = Range.closedOpen(0L, Long.MAX_VALUE);
+
     private final Path logDirectory;
     private final Pattern logPattern;
     private final String defaultEntry;
+    private final boolean logIndexEnabled;
+    private final Path logIndexDirectory;
+    private final int logIndexInterval;
+    private final long logIndexBlockSize;
+    private final boolean logFilterMemoryMapped;
+    private final ForkJoinPool logFilterPool;
+    private final long logFilterSplitSize;
+    private final ConcurrentMap<Path, LogIndex> logIndexes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, LogTokenIndex> logTokenIndexes = new ConcurrentHashMap<>();
+    private final RotatedLogs rotatedLogs;
+    private final long logFollowPollMillis;
+    private final Semaphore logFollowPermits;
+    private final Semaphore logReadPermits;
+    private final ExecutorService logReadExecutor;
+    private final long logReadTimeoutMillis;
+    @GuardedBy("this")
+    private LogWatcher logWatcher;
+    private final LogTrimmer logTrimmer;
+    private final LogResultCache logResultCache;
+    private final List<String> logRecordGroups;
 
     @Inject
     private LogsHandler(AgentConfig config, PrestoConfig prestoConfig)
@@ -71,6 +156,33 @@ public class LogsHandler
         logDirectory = requireNonNull(prestoConfig.getLogDirectory());
         defaultEntry = requireNonNull(config.getDefaultLogEntry());
         logPattern = Pattern.compile(requireNonNull(config.getLogEntryPattern()));
+        logIndexEnabled = config.isLogIndexEnabled();
+        logIndexDirectory = requireNonNull(config.getLogIndexDirectory());
+        logIndexInterval = config.getLogIndexInterval();
+        logIndexBlockSize = config.getLogIndexBlockSize().toBytes();
+        logFilterMemoryMapped = config.isLogFilterMemoryMapped();
+        logFilterPool = config.getLogFilterParallelism() > 1
+                ? newLogFilterPool(config.getLogFilterParallelism())
+                : null;
+        logFilterSplitSize = config.getLogFilterSplitSize().toBytes();
+        rotatedLogs = new RotatedLogs(logDirectory, logPattern, DATE_GROUP, LogsHandler::parseDate);
+        logFollowPollMillis = config.getLogFollowPollInterval().toMillis();
+        logFollowPermits = new Semaphore(config.getLogFollowMaxFollowers());
+        // Fair, so that a trimmer waiting for every permit is not starved
+        logReadPermits = new Semaphore(config.getLogReadMaxReaders(), true);
+        logTrimmer = new LogTrimmer(logPattern, DATE_GROUP, LogsHandler::parseDate,
+                logReadPermits, config.getLogReadMaxReaders());
+        // Reads beyond the queue are refused rather than waiting for a thread
+        logReadExecutor = new ThreadPoolExecutor(
+                config.getLogReadMaxReaders(), config.getLogReadMaxReaders(),
+                0, SECONDS, new ArrayBlockingQueue<>(config.getLogReadMaxReaders()),
+                new ThreadFactoryBuilder().setNameFormat("log-reader-%s").setDaemon(true).build());
+        logReadTimeoutMillis = config.getLogReadTimeout().toMillis();
+        // Entries are held as strings, with two bytes per character
+        long logCacheMaxChars = config.getLogCacheMaxSize().toBytes() / 2;
+        logResultCache = logCacheMaxChars > 0
+                ? new LogResultCache(logPattern, logCacheMaxChars)
+                : null;
 
         Matcher matcher = logPattern.matcher(defaultEntry);
         if (!matcher.matches()) {
@@ -85,6 +197,31 @@ public class LogsHandler
             throw new IllegalArgumentException(
                     "Log pattern should have groups named \"date\" and \"level\"", e);
         }
+        logRecordGroups = new LogRecordWriter(logPattern, defaultEntry, DATE_GROUP, LogsHandler::parseDate)
+                .getGroups();
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        logReadExecutor.shutdownNow();
+        if (logFilterPool != null) {
+            logFilterPool.shutdownNow();
+        }
+        synchronized (this) {
+            if (logWatcher != null) {
+                logWatcher.close();
+            }
+        }
+    }
+
+    private static ForkJoinPool newLogFilterPool(int parallelism)
+    {
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("log-filter-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
     }
 
     public Response getLogList()
@@ -111,13 +248,93 @@ public class LogsHandler
         return Response.ok(fileList).build();
     }
 
+    /**
+     * Read logs on a thread of the log read executor, and resume the
+     * suspended response with the result of the read
+     * <p>
+     * The response is written from the same thread, so reading a log and
+     * sending its entries to a slow client does not hold a thread of the
+     * HTTP server. Once {@code log-read.max-readers} requests are reading,
+     * as many again wait for a thread, and further requests are refused. If
+     * a read has not returned a response within {@code log-read.timeout},
+     * including the time it waited, it is interrupted or removed from the
+     * queue and the request is refused. Once entries are being sent,
+     * reading stops when they can not be written, such as when the client
+     * has disconnected; the HTTP server does not report disconnected
+     * clients sooner.
+     *
+     * @param read Reads the log, such as {@link #getLogs}
+     */
+    public void readAsync(AsyncResponse asyncResponse, Supplier<Response> read)
+    {
+        requireNonNull(asyncResponse);
+        requireNonNull(read);
+
+        AtomicReference<Future<?>> task = new AtomicReference<>();
+        asyncResponse.setTimeoutHandler(response -> {
+            Future<?> future = task.get();
+            if (future != null) {
+                future.cancel(true);
+            }
+            response.resume(serviceUnavailable("Timed out reading logs"));
+        });
+        asyncResponse.setTimeout(logReadTimeoutMillis, MILLISECONDS);
+        try {
+            task.set(logReadExecutor.submit(() -> resume(asyncResponse, read)));
+        }
+        catch (RejectedExecutionException e) {
+            asyncResponse.resume(serviceUnavailable("Too many logs are being read"));
+        }
+    }
+
+    private static void resume(AsyncResponse asyncResponse, Supplier<Response> read)
+    {
+        Response response;
+        try {
+            response = read.get();
+        }
+        catch (RuntimeException e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        if (!asyncResponse.resume(response) && response.getEntity() instanceof Closeable) {
+            // The request timed out, so the log held open will not be read
+            try {
+                ((Closeable) response.getEntity()).close();
+            }
+            catch (IOException | UncheckedIOException e) {
+                LOG.debug(e, "Could not close log that timed out");
+            }
+        }
+    }
+
     /**
      * Method called in response to GET request
+     * <p>
+     * If there is no file with the given name, but there is a log rotated
+     * by airlift with that name, the live file and archives of that log
+     * are read as a single file.
+     * <p>
+     * If a search is given, only entries containing all of its words are
+     * returned; see {@link LogTokens}.
+     * <p>
+     * Requests that read logs, including for pages and counts, are refused
+     * once {@code log-read.max-readers} of them are reading, so that they
+     * can not use every thread of the HTTP server.
      */
     public Response getLogs(String filename, Instant start,
-            Instant end, String logLevel, Integer maxEntries)
+            Instant end, String logLevel, Integer maxEntries, String search, LogFormat format)
     {
         requireNonNull(logLevel);
+        requireNonNull(format);
+
+        Set<String> searchTokens = null;
+        if (search != null) {
+            searchTokens = LogTokens.getTokens(search);
+            if (searchTokens.isEmpty()) {
+                return badRequest("Search must contain a letter or digit");
+            }
+        }
 
         if (start != null && end != null) {
             if (maxEntries != null) {
@@ -130,6 +347,95 @@ public class LogsHandler
             }
         }
 
+        int capacity = maxEntries == null ? Integer.MAX_VALUE : maxEntries;
+        if (format == LogFormat.NDJSON) {
+            // The groups written for each entry are captured as it is read
+            return readLogs(filename, start, end, logLevel, searchTokens, capacity,
+                    filter -> filter.streamRecords(logRecordGroups), LogRecord::of, this::writeRecords, format);
+        }
+        return readLogs(filename, start, end, logLevel, searchTokens, capacity,
+                LogFilter::streamEntries, Function.identity(), LogsHandler::writeArray, format);
+    }
+
+    /**
+     * Read the entries of a log for {@link #getLogs}, and return a response
+     * which writes them
+     *
+     * @param streamer Streams the entries of a log file read forwards
+     * @param fromEntry Makes an entry from its text, for entries which
+     * are not read forwards
+     * @param writer Writes the entries in the format
+     */
+    private <T> Response readLogs(String filename, Instant start, Instant end,
+            String logLevel, Set<String> searchTokens, int capacity,
+            LogFilter.EntryStreamer<T> streamer, Function<String, T> fromEntry,
+            EntriesWriter<T> writer, LogFormat format)
+    {
+        if (!tryAcquireReadPermit()) {
+            return serviceUnavailable("Too many logs are being read");
+        }
+        Stream<T> logEntries;
+        try {
+            // The permit is held until the entries have been written
+            logEntries = streamLogs(filename, start, end, logLevel,
+                    searchTokens, capacity, start != null, streamer, fromEntry)
+                    .onClose(logReadPermits::release);
+        }
+        catch (WebApplicationException e) {
+            logReadPermits.release();
+            return e.getResponse();
+        }
+
+        // Read up to the first entry before the response is committed, so
+        // that errors found there can still be reported with a status code
+        PeekingIterator<T> entries = peekingIterator(logEntries.iterator());
+        try {
+            entries.hasNext();
+        }
+        catch (UncheckedIOException e) {
+            logEntries.close();
+            LOG.warn(e, "IOException while reading file");
+            return serverError("IOException while reading file");
+        }
+        catch (DateTimeParseException e) {
+            logEntries.close();
+            LOG.warn(e, "Date in log file has invalid format");
+            return serverError("Date in log file has invalid format");
+        }
+
+        return Response.ok(new EntriesOutput<>(logEntries, entries, writer), format.getMediaType()).build();
+    }
+
+    /**
+     * Method called in response to GET request with a cursor
+     * <p>
+     * The first entries of a log file after the position the cursor names
+     * are returned, with a cursor naming the position after them in the
+     * {@link LogCursor#HEADER} header; see {@link LogFilter#readPage()}.
+     * An empty cursor names the start of the file. Reading from a cursor
+     * seeks to its position, so paging through a file reads it once.
+     */
+    public Response getLogPage(String filename, Instant start, Instant end,
+            String logLevel, Integer maxEntries, String search, String cursor, LogFormat format)
+    {
+        requireNonNull(logLevel);
+        requireNonNull(cursor);
+        requireNonNull(format);
+
+        if (start != null || end != null) {
+            return badRequest("Can not provide date range with a cursor");
+        }
+        if (maxEntries != null && maxEntries < 0) {
+            return badRequest("Number of entries can not be negative");
+        }
+        Set<String> searchTokens = null;
+        if (search != null) {
+            searchTokens = LogTokens.getTokens(search);
+            if (searchTokens.isEmpty()) {
+                return badRequest("Search must contain a letter or digit");
+            }
+        }
+
         Path filePath;
         try {
             filePath = logDirectory.resolve(filename);
@@ -137,56 +443,704 @@ public class LogsHandler
         catch (InvalidPathException e) {
             return badRequest("Invalid file name");
         }
+        if (!Files.isRegularFile(filePath)) {
+            return notFound(Files.exists(filePath)
+                    ? "Not a regular file"
+                    : "Cursors can only be used with log files");
+        }
 
-        LogFilter logFilter;
+        if (!tryAcquireReadPermit()) {
+            return serviceUnavailable("Too many logs are being read");
+        }
+        LogFilter.Page page;
+        String fileKey;
+        long nextPrefixChecksum;
         try {
-            logFilter = LogFilter.builder()
-                    .setFile(filePath)
-                    .setPattern(logPattern)
-                    .setDefaultEntry(defaultEntry)
-                    .setLineSeparator("\r\n")
+            BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            fileKey = String.valueOf(attributes.fileKey());
+            long offset = 0;
+            if (!cursor.isEmpty()) {
+                LogCursor position = LogCursor.decode(cursor);
+                if (position == null) {
+                    return badRequest("Invalid cursor");
+                }
+                // Trimming a file keeps its key, but changes its start
+                if (!position.getFileKey().equals(fileKey)
+                        || position.getOffset() > attributes.size()
+                        || position.getPrefixChecksum()
+                        != LogFileIdentity.prefixChecksum(filePath, position.getOffset())) {
+                    return gone("Cursor is no longer valid; the log file has been rotated, truncated or trimmed");
+                }
+                offset = position.getOffset();
+            }
+
+            LogFilter.Builder filterBuilder = newFilterBuilder(filePath, null, null, logLevel)
+                    .useMemoryMapping(false)
                     .setCapacity(maxEntries == null ? Integer.MAX_VALUE : maxEntries)
-                    .keepFirst(start != null)
-                    .addGroupFilter(DATE_GROUP, getFilter(start, end))
-                    .addGroupFilter(LEVEL_GROUP, getFilter(logLevel))
-                    .build();
+                    .keepFirst(true)
+                    .setRange(offset, Long.MAX_VALUE);
+            if (searchTokens != null) {
+                filterBuilder.setEntryFilter(LogTokens.containsAll(searchTokens));
+            }
+            page = filterBuilder.build().readPage();
+            nextPrefixChecksum = LogFileIdentity.prefixChecksum(filePath, page.getNextOffset());
+        }
+        catch (IOException e) {
+            LOG.warn(e, "IOException while reading file");
+            return serverError("IOException while reading file");
+        }
+        catch (DateTimeParseException e) {
+            LOG.warn(e, "Date in log file has invalid format");
+            return serverError("Date in log file has invalid format");
+        }
+        finally {
+            logReadPermits.release();
+        }
+        List<String> entries = page.getEntries();
+        StreamingOutput output = format == LogFormat.NDJSON
+                ? stream -> writeEntries(Stream.empty(), entries.stream().map(LogRecord::of).iterator(),
+                        this::writeRecords, stream)
+                : stream -> writeEntries(Stream.empty(), entries.iterator(), LogsHandler::writeArray, stream);
+        return Response.ok(output, format.getMediaType())
+                .header(LogCursor.HEADER, new LogCursor(fileKey, nextPrefixChecksum, page.getNextOffset()).encode())
+                .build();
+    }
+
+    /**
+     * Method called in response to GET request for counts of log entries
+     * <p>
+     * The entries which pass the filters are counted in a single pass over
+     * the log, by the values of the given groups of their headers and by
+     * the interval of time they are in; see {@link LogHistogram}.
+     *
+     * @param groups The names of the groups to count by
+     * @param intervalMillis The length of the intervals to count by, or
+     * zero to not count by time
+     */
+    public Response getHistogram(String filename, Instant start, Instant end,
+            String logLevel, String search, List<String> groups, long intervalMillis)
+    {
+        requireNonNull(logLevel);
+        requireNonNull(groups);
+
+        Set<String> searchTokens = null;
+        if (search != null) {
+            searchTokens = LogTokens.getTokens(search);
+            if (searchTokens.isEmpty()) {
+                return badRequest("Search must contain a letter or digit");
+            }
+        }
+        if (start != null && end != null && start.isAfter(end)) {
+            return badRequest(
+                    "End of date range (%s) is before start (%s)", start, end);
+        }
+        if (intervalMillis < 0) {
+            return badRequest("Interval can not be negative");
+        }
+        if (groups.size() != ImmutableSet.copyOf(groups).size()) {
+            return badRequest("Groups to count by must be distinct");
+        }
+        Matcher matcher = logPattern.matcher(defaultEntry);
+        matcher.matches();
+        for (String group : groups) {
+            if (group.equals(DATE_GROUP)) {
+                return badRequest("Use an interval to count by date");
+            }
+            try {
+                matcher.group(group);
+            }
+            catch (IllegalArgumentException e) {
+                return badRequest("Log entries have no group named %s", group);
+            }
+        }
+
+        if (!tryAcquireReadPermit()) {
+            return serviceUnavailable("Too many logs are being read");
+        }
+        LogHistogram histogram = new LogHistogram(DATE_GROUP,
+                LogsHandler::parseDate, groups, intervalMillis, MAX_HISTOGRAM_KEYS);
+        try (Stream<List<String>> logEntries = streamLogGroups(filename, start, end, logLevel,
+                searchTokens, histogram.getCapturedGroups())) {
+            logEntries.forEachOrdered(histogram::add);
+        }
+        catch (WebApplicationException e) {
+            return e.getResponse();
+        }
+        catch (UncheckedIOException e) {
+            LOG.warn(e, "IOException while reading file");
+            return serverError("IOException while reading file");
+        }
+        catch (DateTimeParseException e) {
+            LOG.warn(e, "Date in log file has invalid format");
+            return serverError("Date in log file has invalid format");
+        }
+        catch (LogHistogram.TooManyKeysException e) {
+            return badRequest("More than %s counts; use a longer interval or fewer groups",
+                    MAX_HISTOGRAM_KEYS);
+        }
+        finally {
+            logReadPermits.release();
+        }
+        return Response.ok(histogram.getRows(), MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Stream the entries of a log file or rotated log which pass the
+     * filters, as for {@link #getLogs}. The stream must be closed.
+     *
+     * @param searchTokens The words of the search, or null
+     * @param streamer Streams the entries of a log file read forwards
+     * @param fromEntry Makes an entry from its text, for entries which
+     * are not read forwards
+     * @throws WebApplicationException with the response to return if the
+     * log can not be read
+     */
+    private <T> Stream<T> streamLogs(String filename, Instant start, Instant end,
+            String logLevel, Set<String> searchTokens, int capacity, boolean keepFirst,
+            LogFilter.EntryStreamer<T> streamer, Function<String, T> fromEntry)
+    {
+        Path filePath = resolveLog(filename);
+        LogFilter.Builder filterBuilder = newStreamFilterBuilder(filePath, start, end, logLevel, searchTokens)
+                .setCapacity(capacity)
+                .keepFirst(keepFirst);
+        LogFilter.EntryStreamer<T> fileStreamer = keepFirst || capacity == Integer.MAX_VALUE
+                ? streamer
+                : filter -> filter.streamEntries().map(fromEntry);
+
+        List<Path> rotatedFiles = getRotatedLogFiles(filePath, filename);
+        if (!rotatedFiles.isEmpty()) {
+            return streamRotatedLog(filterBuilder, rotatedFiles,
+                    start, end, searchTokens, capacity, keepFirst, fileStreamer, fromEntry);
+        }
+        if (logResultCache != null && start == null && end == null
+                && !keepFirst && capacity <= MAX_CACHED_ENTRIES
+                && Files.isRegularFile(filePath)) {
+            return getCachedLastEntries(filterBuilder, filePath,
+                    logLevel, searchTokens, capacity).stream().map(fromEntry);
+        }
+        return streamLog(filterBuilder, filePath, start, end, searchTokens, fileStreamer);
+    }
+
+    /**
+     * Stream the values of the given groups in the headers of the entries
+     * of a log file or rotated log which pass the filters, as for
+     * {@link #getHistogram}; see {@link LogFilter#streamGroups}. The stream
+     * must be closed.
+     *
+     * @param searchTokens The words of the search, or null
+     * @throws WebApplicationException with the response to return if the
+     * log can not be read
+     */
+    private Stream<List<String>> streamLogGroups(String filename, Instant start, Instant end,
+            String logLevel, Set<String> searchTokens, List<String> groups)
+    {
+        Path filePath = resolveLog(filename);
+        LogFilter.Builder filterBuilder = newStreamFilterBuilder(filePath, start, end, logLevel, searchTokens)
+                .keepFirst(true);
+        LogFilter.EntryStreamer<List<String>> streamer = filter -> filter.streamGroups(groups);
+
+        List<Path> rotatedFiles = getRotatedLogFiles(filePath, filename);
+        if (!rotatedFiles.isEmpty()) {
+            return concatRotatedLog(filterBuilder, getFilesInRange(rotatedFiles, start, end),
+                    start, end, searchTokens, streamer);
+        }
+        return streamLog(filterBuilder, filePath, start, end, searchTokens, streamer);
+    }
+
+    private Path resolveLog(String filename)
+    {
+        try {
+            return logDirectory.resolve(filename);
+        }
+        catch (InvalidPathException e) {
+            throw new WebApplicationException(badRequest("Invalid file name"));
+        }
+    }
+
+    private LogFilter.Builder newStreamFilterBuilder(Path filePath, Instant start, Instant end,
+            String logLevel, Set<String> searchTokens)
+    {
+        LogFilter.Builder filterBuilder = newFilterBuilder(filePath, start, end, logLevel);
+        if (logFilterPool != null) {
+            filterBuilder.setParallel(logFilterPool, logFilterSplitSize);
+        }
+        if (searchTokens != null) {
+            filterBuilder.setEntryFilter(LogTokens.containsAll(searchTokens));
+        }
+        return filterBuilder;
+    }
+
+    /**
+     * Stream the entries of a single log file, which may be indexed
+     *
+     * @throws WebApplicationException with the response to return if the
+     * log can not be read
+     */
+    private <T> Stream<T> streamLog(LogFilter.Builder filterBuilder, Path filePath,
+            Instant start, Instant end, Set<String> searchTokens, LogFilter.EntryStreamer<T> streamer)
+    {
+        setIndexedRanges(filterBuilder, filePath, start, end, searchTokens, ALL_OFFSETS);
+
+        LogFilter logFilter;
+        try {
+            logFilter = filterBuilder.build();
         }
         catch (FileNotFoundException e) {
-            return notFound(Files.exists(filePath)
+            throw new WebApplicationException(notFound(Files.exists(filePath)
                     ? "Not a regular file"
-                    : "File not found");
+                    : "File not found"));
         }
         catch (IllegalArgumentException e) {
             LOG.error(e, "Internal: Capturing group not present in log entry pattern");
-            return serverError("Log parser configured incorrectly");
+            throw new WebApplicationException(serverError("Log parser configured incorrectly"));
         }
         catch (DateTimeParseException e) {
             LOG.error(e, "Internal: Default log entry has invalid date");
-            return serverError("Log parser configured incorrectly");
+            throw new WebApplicationException(serverError("Log parser configured incorrectly"));
         }
 
-        Stream<String> logEntries;
         try {
-            logEntries = logFilter.streamEntries();
+            return streamer.stream(logFilter);
         }
         catch (IOException e) {
             LOG.warn(e, "IOException while reading file");
-            return serverError("IOException while reading file");
+            throw new WebApplicationException(serverError("IOException while reading file"));
+        }
+    }
+
+    /**
+     * Get the last entries of a log file through {@link #logResultCache},
+     * which reads only the data appended since a query was last made
+     *
+     * @throws WebApplicationException with the response to return if the
+     * log can not be read
+     */
+    private List<String> getCachedLastEntries(LogFilter.Builder filterBuilder,
+            Path filePath, String logLevel, Set<String> searchTokens, int capacity)
+    {
+        List<Object> query = ImmutableList.of(logLevel.toUpperCase(Locale.ENGLISH),
+                searchTokens == null ? ImmutableSet.of() : searchTokens);
+        try {
+            return logResultCache.getLastEntries(filePath, query, capacity, (start, end, rangeCapacity) -> {
+                filterBuilder.setCapacity(rangeCapacity).setRange(start, end);
+                setIndexedRanges(filterBuilder, filePath, null, null, searchTokens,
+                        Range.closedOpen(start, end));
+                try (Stream<String> entries = filterBuilder.build().streamEntries()) {
+                    return entries.collect(toImmutableList());
+                }
+            });
+        }
+        catch (IOException | UncheckedIOException e) {
+            LOG.warn(e, "IOException while reading file");
+            throw new WebApplicationException(serverError("IOException while reading file"));
         }
         catch (DateTimeParseException e) {
             LOG.warn(e, "Date in log file has invalid format");
-            return serverError("Date in log file has invalid format");
+            throw new WebApplicationException(serverError("Date in log file has invalid format"));
+        }
+    }
+
+    /**
+     * Method called in response to GET request following a log file
+     * <p>
+     * The entries appended to the file are streamed as server-sent events
+     * until the client disconnects; see {@link LogFollower}. If there is
+     * no file with the given name, the live file of the rotated log with
+     * that name is followed.
+     *
+     * @param maxEntries The number of existing entries to send first, or
+     * null for none
+     */
+    public Response followLogs(String filename, Instant start,
+            Instant end, String logLevel, Integer maxEntries, String search, String cursor, LogFormat format)
+    {
+        requireNonNull(logLevel);
+        requireNonNull(format);
+
+        if (start != null || end != null) {
+            return badRequest("Can not provide date range when following a log");
+        }
+        if (cursor != null) {
+            return badRequest("Can not provide a cursor when following a log");
+        }
+        if (format != LogFormat.JSON) {
+            return badRequest("Followed logs are sent as server-sent events of JSON strings");
+        }
+        if (maxEntries != null && maxEntries < 0) {
+            return badRequest("Number of entries can not be negative");
+        }
+
+        Set<String> searchTokens = null;
+        if (search != null) {
+            searchTokens = LogTokens.getTokens(search);
+            if (searchTokens.isEmpty()) {
+                return badRequest("Search must contain a letter or digit");
+            }
+        }
+
+        Path filePath;
+        try {
+            filePath = logDirectory.resolve(filename);
+            if (!Files.exists(filePath)) {
+                filePath = logDirectory.resolve(filename + RotatedLogs.LOG_SUFFIX);
+            }
+        }
+        catch (InvalidPathException e) {
+            return badRequest("Invalid file name");
+        }
+        if (!Files.isRegularFile(filePath)) {
+            return notFound(Files.exists(filePath)
+                    ? "Not a regular file"
+                    : "File not found");
+        }
+
+        LogFilter.Builder filterBuilder = newFilterBuilder(filePath, null, null, logLevel);
+        if (searchTokens != null) {
+            filterBuilder.setEntryFilter(LogTokens.containsAll(searchTokens));
+        }
+        LogFollower follower = new LogFollower(filterBuilder, filePath, logPattern,
+                getLogWatcher(), logFollowPollMillis, maxEntries == null ? 0 : maxEntries);
+
+        if (!logFollowPermits.tryAcquire()) {
+            return serviceUnavailable("Too many logs are being followed");
+        }
+        StreamingOutput output = stream -> {
+            try {
+                follower.follow(stream);
+            }
+            catch (IOException e) {
+                // Usually the client has disconnected
+                LOG.debug(e, "Stopped following %s", filename);
+            }
+            finally {
+                logFollowPermits.release();
+            }
+        };
+        // Keep the HTTP server from compressing the events, which would
+        // hold them back until enough had been written
+        return Response.ok(output, MediaType.SERVER_SENT_EVENTS)
+                .header(HttpHeaders.CONTENT_ENCODING, "identity")
+                .build();
+    }
+
+    /**
+     * Take a permit to read logs if one is free. Unlike
+     * {@link Semaphore#tryAcquire()}, this does not take a permit ahead of
+     * a {@link LogTrimmer} waiting for all of them.
+     */
+    private boolean tryAcquireReadPermit()
+    {
+        try {
+            return logReadPermits.tryAcquire(0, SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private synchronized LogWatcher getLogWatcher()
+    {
+        if (logWatcher == null) {
+            logWatcher = new LogWatcher(logDirectory);
+        }
+        return logWatcher;
+    }
+
+    /**
+     * @return The files of the rotated log with the given name, or none if
+     * there is a file with that name
+     */
+    private List<Path> getRotatedLogFiles(Path filePath, String name)
+    {
+        if (Files.exists(filePath)) {
+            return ImmutableList.of();
+        }
+        try {
+            return rotatedLogs.getFiles(name);
+        }
+        catch (IOException e) {
+            LOG.debug(e, "Could not list files of log %s", name);
+            return ImmutableList.of();
+        }
+    }
+
+    /**
+     * Stream the entries of the files of a rotated log, oldest first, as
+     * if they were a single file
+     * <p>
+     * Files which can not have entries in the date range are skipped, and
+     * each file is opened only when it is reached. When only the last
+     * entries are wanted, files are read from the newest until enough
+     * entries are found.
+     */
+    private <T> Stream<T> streamRotatedLog(LogFilter.Builder filterBuilder,
+            List<Path> files, Instant start, Instant end,
+            Set<String> searchTokens, int capacity, boolean keepFirst,
+            LogFilter.EntryStreamer<T> streamer, Function<String, T> fromEntry)
+    {
+        List<Path> filesInRange = getFilesInRange(files, start, end);
+
+        if (!keepFirst && capacity != Integer.MAX_VALUE) {
+            Iterator<String> lastEntries = new AbstractIterator<String>()
+            {
+                private Iterator<String> entries;
+
+                @Override
+                protected String computeNext()
+                {
+                    if (entries == null) {
+                        entries = readLastEntries(filterBuilder, filesInRange,
+                                start, end, searchTokens, capacity);
+                    }
+                    return entries.hasNext() ? entries.next() : endOfData();
+                }
+            };
+            return StreamSupport.stream(spliteratorUnknownSize(lastEntries, ORDERED | NONNULL), false)
+                    .map(fromEntry);
+        }
+
+        return concatRotatedLog(filterBuilder, filesInRange, start, end, searchTokens, streamer)
+                .limit(capacity);
+    }
+
+    private List<Path> getFilesInRange(List<Path> files, Instant start, Instant end)
+    {
+        return start == null && end == null
+                ? files
+                : rotatedLogs.getFilesInRange(files,
+                        start == null ? Long.MIN_VALUE : start.toEpochMilli(),
+                        end == null ? Long.MAX_VALUE : end.toEpochMilli());
+    }
+
+    /**
+     * Stream the entries of the files of a rotated log forwards, opening
+     * each file only when it is reached
+     */
+    private <T> Stream<T> concatRotatedLog(LogFilter.Builder filterBuilder,
+            List<Path> files, Instant start, Instant end, Set<String> searchTokens,
+            LogFilter.EntryStreamer<T> streamer)
+    {
+        Deque<Stream<T>> opened = new ArrayDeque<>();
+        Iterator<T> entries = Iterators.concat(Iterators.transform(files.iterator(), file -> {
+            // The previous file has been read to the end
+            opened.forEach(Stream::close);
+            opened.clear();
+            Stream<T> fileEntries = streamLogFile(filterBuilder, file, start, end, searchTokens, streamer);
+            opened.add(fileEntries);
+            return fileEntries.iterator();
+        }));
+        return StreamSupport.stream(spliteratorUnknownSize(entries, ORDERED | NONNULL), false)
+                .onClose(() -> opened.forEach(Stream::close));
+    }
+
+    private Iterator<String> readLastEntries(LogFilter.Builder filterBuilder,
+            List<Path> files, Instant start, Instant end,
+            Set<String> searchTokens, int capacity)
+    {
+        Deque<String> entries = new ArrayDeque<>();
+        for (Path file : Lists.reverse(files)) {
+            if (entries.size() >= capacity) {
+                break;
+            }
+            filterBuilder.setCapacity(capacity - entries.size());
+            try (Stream<String> fileEntries = streamLogFile(filterBuilder, file, start, end, searchTokens,
+                    LogFilter::streamEntries)) {
+                Lists.reverse(fileEntries.collect(toImmutableList())).forEach(entries::addFirst);
+            }
+        }
+        return entries.iterator();
+    }
+
+    /**
+     * Stream the entries of one file of a rotated log. I/O errors are
+     * thrown as {@link UncheckedIOException UncheckedIOExceptions}.
+     */
+    private <T> Stream<T> streamLogFile(LogFilter.Builder filterBuilder,
+            Path file, Instant start, Instant end, Set<String> searchTokens,
+            LogFilter.EntryStreamer<T> streamer)
+    {
+        boolean compressed = RotatedLogs.isCompressed(file);
+        filterBuilder.setFile(file)
+                .setCompressed(compressed)
+                .setRange(0, Long.MAX_VALUE);
+        if (!compressed) {
+            setIndexedRanges(filterBuilder, file, start, end, searchTokens, ALL_OFFSETS);
+        }
+        try {
+            return streamer.stream(filterBuilder.build());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Limit the parts of a log file that will be read to those that may
+     * contain entries in the given date range and with the words of the
+     * given search, if the file can be indexed
+     *
+     * @param searchTokens The words of the search, or null
+     * @param offsets The range of the file to read, which the builder
+     * should already be limited to
+     */
+    private void setIndexedRanges(LogFilter.Builder filterBuilder,
+            Path filePath, Instant start, Instant end, Set<String> searchTokens,
+            Range<Long> offsets)
+    {
+        if (!logIndexEnabled || !Files.isRegularFile(filePath)) {
+            return;
+        }
+        RangeSet<Long> ranges = TreeRangeSet.create();
+        ranges.add(offsets);
+
+        if (start != null || end != null) {
+            LogIndex index = logIndexes.computeIfAbsent(filePath.normalize(),
+                    file -> new LogIndex(file,
+                            logIndexDirectory.resolve(file.getFileName() + ".index"),
+                            logPattern, DATE_GROUP, LogsHandler::parseDate, logIndexInterval));
+            try {
+                index.update();
+                ranges.remove(Range.lessThan(
+                        start == null ? 0 : index.findStartOffset(start.toEpochMilli())));
+                ranges.remove(Range.atLeast(
+                        end == null ? Long.MAX_VALUE : index.findEndOffset(end.toEpochMilli())));
+            }
+            catch (IOException | UncheckedIOException e) {
+                LOG.warn(e, "Could not update index of log file %s", filePath);
+            }
+        }
+
+        if (searchTokens != null) {
+            LogTokenIndex index = logTokenIndexes.computeIfAbsent(filePath.normalize(),
+                    file -> new LogTokenIndex(file,
+                            logIndexDirectory.resolve(file.getFileName() + ".tokens"),
+                            logPattern, logIndexBlockSize));
+            try {
+                index.update();
+                ranges.removeAll(index.findRanges(searchTokens).complement());
+            }
+            catch (IOException | UncheckedIOException e) {
+                LOG.warn(e, "Could not update search index of log file %s", filePath);
+            }
         }
+        filterBuilder.setRanges(ranges);
+    }
 
-        List<String> result = logEntries.collect(toImmutableList());
+    private static long parseDate(String date)
+    {
+        long millis = LogTimestamps.parseEpochMillis(date);
+        if (millis != LogTimestamps.UNPARSED) {
+            return millis;
+        }
+        return DATE_FORMAT.parse(date, Instant::from).toEpochMilli();
+    }
 
-        return Response.ok(result).build();
+    /**
+     * Write log entries to the output, and close their stream
+     * <p>
+     * If an error occurs after output has begun, the response is
+     * left incomplete rather than terminated as valid JSON.
+     */
+    private static <T> void writeEntries(Stream<T> logEntries,
+            Iterator<T> entries, EntriesWriter<T> writer, OutputStream output)
+            throws IOException
+    {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+            writer.write(entries, generator);
+        }
+        catch (UncheckedIOException e) {
+            LOG.warn(e, "IOException while streaming file");
+            throw e.getCause();
+        }
+        catch (DateTimeParseException e) {
+            LOG.warn(e, "Date in log file has invalid format");
+            throw new IOException("Date in log file has invalid format", e);
+        }
+        finally {
+            logEntries.close();
+        }
+    }
+
+    /**
+     * Write entries as a JSON array of strings, as {@link LogFormat#JSON}
+     */
+    private static void writeArray(Iterator<String> entries, JsonGenerator generator)
+            throws IOException
+    {
+        generator.writeStartArray();
+        while (entries.hasNext()) {
+            generator.writeString(entries.next());
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Write entries as a JSON object per line, as {@link LogFormat#NDJSON};
+     * see {@link LogRecordWriter}
+     */
+    private void writeRecords(Iterator<LogRecord> entries, JsonGenerator generator)
+            throws IOException
+    {
+        LogRecordWriter writer = new LogRecordWriter(logPattern, defaultEntry,
+                DATE_GROUP, LogsHandler::parseDate);
+        generator.setRootValueSeparator(null);
+        while (entries.hasNext()) {
+            writer.write(entries.next(), generator);
+            generator.writeRaw('\n');
+        }
+    }
+
+    /**
+     * Writes entries to a JSON generator in one of the formats of
+     * {@link LogFormat}
+     */
+    @FunctionalInterface
+    private interface EntriesWriter<T>
+    {
+        void write(Iterator<T> entries, JsonGenerator generator)
+                throws IOException;
+    }
+
+    /**
+     * Entries to write to a response. Their stream is closed once they have
+     * been written, or when the output is closed if they will not be.
+     */
+    private static final class EntriesOutput<T>
+            implements StreamingOutput, Closeable
+    {
+        private final Stream<T> logEntries;
+        private final Iterator<T> entries;
+        private final EntriesWriter<T> writer;
+
+        private EntriesOutput(Stream<T> logEntries, Iterator<T> entries, EntriesWriter<T> writer)
+        {
+            this.logEntries = requireNonNull(logEntries);
+            this.entries = requireNonNull(entries);
+            this.writer = requireNonNull(writer);
+        }
+
+        @Override
+        public void write(OutputStream output)
+                throws IOException
+        {
+            writeEntries(logEntries, entries, writer, output);
+        }
+
+        @Override
+        public void close()
+        {
+            logEntries.close();
+        }
     }
 
     /**
      * Method called in response to DELETE request
+     *
+     * @param jobUri Builds the location of a deletion job from the file
+     * name and the job ID
      */
-    public Response deleteLogs(String filename, Instant end)
+    public Response deleteLogs(String filename, Instant end, UriBuilder jobUri)
     {
         Path filePath;
         try {
@@ -197,7 +1151,7 @@ public class LogsHandler
         }
 
         if (end != null) {
-            return deleteLogRange(filePath, end);
+            return deleteLogRange(filePath, end, jobUri);
         }
         else {
             try {
@@ -212,78 +1166,108 @@ public class LogsHandler
         }
     }
 
-    private Response deleteLogRange(Path filePath, Instant end)
+    /**
+     * Start deleting the entries of a file before a time; see {@link LogTrimmer}
+     */
+    private Response deleteLogRange(Path filePath, Instant end, UriBuilder jobUri)
     {
         requireNonNull(filePath);
         requireNonNull(end);
+        requireNonNull(jobUri);
 
-        LogFilter logFilter;
-        try {
-            logFilter = LogFilter.builder()
-                    .setFile(filePath)
-                    .setPattern(logPattern)
-                    .setDefaultEntry(defaultEntry)
-                    .addGroupFilter(DATE_GROUP, getFilter(end, null))
-                    .build();
-        }
-        catch (FileNotFoundException e) {
+        if (!Files.isRegularFile(filePath)) {
             return notFound(Files.exists(filePath)
                     ? "Not a regular file"
                     : "File not found");
         }
-        catch (IllegalArgumentException e) {
-            LOG.error(e, "Internal: Capturing group not present in log entry pattern");
-            return serverError("Log parser configured incorrectly");
-        }
-        catch (DateTimeParseException e) {
-            LOG.error(e, "Internal: Default log entry has invalid date");
-            return serverError("Log parser configured incorrectly");
-        }
 
-        Stream<String> logEntries;
-        try {
-            logEntries = logFilter.streamEntries();
-        }
-        catch (IOException e) {
-            LOG.warn(e, "IOException while reading file");
-            return serverError("IOException while reading file");
-        }
-        catch (DateTimeParseException e) {
-            LOG.warn(e, "Date in log file has invalid format");
-            return serverError("Date in log file has invalid format");
+        // Round inward, as the date filters do
+        long keepFromMillis = end.toEpochMilli() + (end.getNano() % 1_000_000 == 0 ? 0 : 1);
+        String jobId = logTrimmer.submit(filePath, keepFromMillis);
+        URI location = jobUri.build(filePath.getFileName().toString(), jobId);
+        return Response.status(ACCEPTED)
+                .location(location)
+                .entity("Log entries are being deleted.\r\n" +
+                        "To check progress, see " + location)
+                .type(MediaType.TEXT_PLAIN)
+                .build();
+    }
+
+    /**
+     * Method called in response to GET request for the status of a deletion
+     */
+    public Response getJobStatus(String filename, String jobId)
+    {
+        Map<String, Object> status = logTrimmer.getStatus(jobId);
+        if (status == null || !status.get("file").equals(filename)) {
+            return notFound("Job not found");
         }
+        return Response.ok(status, MediaType.APPLICATION_JSON).build();
+    }
 
-        try {
-            Files.write(filePath, (Iterable<String>) logEntries::iterator);
+    private LogFilter.Builder newFilterBuilder(Path file, Instant start, Instant end, String logLevel)
+    {
+        LogFilter.Builder filterBuilder = LogFilter.builder()
+                .setFile(file)
+                .setPattern(logPattern)
+                .setDefaultEntry(defaultEntry)
+                .setLineSeparator("\r\n")
+                .useMemoryMapping(logFilterMemoryMapped);
+        // Filters that pass everything are left out, so that their groups
+        // are not copied out of every entry
+        if (start != null || end != null) {
+            filterBuilder.addGroupFilter(DATE_GROUP, getFilter(start, end));
         }
-        catch (IOException e) {
-            LOG.warn(e, "IOException while writing file");
-            return serverError("IOException while writing file");
+        if (end != null) {
+            // Entries are written in time order, as the index assumes
+            filterBuilder.stopAt(DATE_GROUP, getAfterFilter(end));
         }
-
-        // TODO: Use Status.ACCEPTED for asynchronous response
-        return Response.noContent().build();
+        if (logLevel != null && !DEFAULT_LOG_LEVEL.equalsIgnoreCase(logLevel)) {
+            filterBuilder.addGroupFilter(LEVEL_GROUP, getFilter(logLevel));
+        }
+        return filterBuilder;
     }
 
+    /**
+     * Get a filter for dates in the given range
+     * <p>
+     * Dates in Presto's layout are compared as milliseconds, without
+     * creating any objects. Other dates are parsed with {@link #DATE_FORMAT}.
+     */
     private static Predicate<String> getFilter(Instant start, Instant end)
     {
-        boolean nullStart = start == null;
-        boolean nullEnd = end == null;
-        if (nullStart && nullEnd) {
+        if (start == null && end == null) {
             return s -> true;
         }
-        else if (nullStart) {
-            return s -> DATE_FORMAT.parse(s, Instant::from).compareTo(end) <= 0;
-        }
-        else if (nullEnd) {
-            return s -> DATE_FORMAT.parse(s, Instant::from).compareTo(start) >= 0;
-        }
-        else {
-            return s -> {
-                Instant date = DATE_FORMAT.parse(s, Instant::from);
-                return date.compareTo(start) >= 0 && date.compareTo(end) <= 0;
-            };
-        }
+        // Round inward, since parsed dates are whole milliseconds
+        long startMillis = start == null ? Long.MIN_VALUE
+                : start.toEpochMilli() + (start.getNano() % 1_000_000 == 0 ? 0 : 1);
+        long endMillis = end == null ? Long.MAX_VALUE : end.toEpochMilli();
+        return s -> {
+            long millis = LogTimestamps.parseEpochMillis(s);
+            if (millis != LogTimestamps.UNPARSED) {
+                return millis >= startMillis && millis <= endMillis;
+            }
+            Instant date = DATE_FORMAT.parse(s, Instant::from);
+            return (start == null || date.compareTo(start) >= 0)
+                    && (end == null || date.compareTo(end) <= 0);
+        };
+    }
+
+    /**
+     * Get a filter for dates after the end of a range, as the filter for
+     * the range rounds them
+     */
+    private static Predicate<String> getAfterFilter(Instant end)
+    {
+        long endMillis = end.toEpochMilli();
+        return s -> {
+            long millis = LogTimestamps.parseEpochMillis(s);
+            if (millis != LogTimestamps.UNPARSED) {
+                return millis > endMillis;
+            }
+            return DATE_FORMAT.parse(s, Instant::from).isAfter(end);
+        };
     }
 
     private static Predicate<String> getFilter(String logLevel)
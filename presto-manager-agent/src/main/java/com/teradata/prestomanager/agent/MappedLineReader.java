@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Finds the lines of a region of a memory-mapped file without decoding them
+ * <p>
+ * Lines are split as by {@link LogLineReader}. Each line is exposed as a
+ * range of bytes in {@link #getBuffer()}, and is only decoded on request.
+ * Lines that are not decoded can still be checked to be valid UTF-8 with
+ * {@link #validateLine()}, so that they fail as decoding them would.
+ * <p>
+ * The file is mapped in windows of 64 MiB by default, or larger if a single
+ * line needs it. If the file is truncated while it is mapped, reading it
+ * may fail with an {@link InternalError}.
+ */
+final class MappedLineReader
+        implements Closeable
+{
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private final int windowSize;
+    private final CharsetDecoder decoder = UTF_8.newDecoder();
+    private final CharBuffer validated = CharBuffer.allocate(1024);
+
+    private ByteBuffer window = ByteBuffer.allocate(0);
+    private ByteBuffer view = window.duplicate();
+
+    /**
+     * Offset in the file of the first byte of {@link #window}
+     */
+    private long windowOffset;
+    private int position;
+    private int lineStart;
+    private int lineEnd;
+    private boolean skipLineFeed;
+
+    /**
+     * Read the lines starting at or after {@code start} and before
+     * {@code end}. The start offset should be the start of a line.
+     */
+    MappedLineReader(Path file, long start, long end)
+            throws IOException
+    {
+        this(file, start, end, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedLineReader(Path file, long start, long end, int windowSize)
+            throws IOException
+    {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range of file to read");
+        }
+        this.channel = FileChannel.open(requireNonNull(file), READ);
+        this.end = end;
+        this.windowSize = windowSize;
+        this.windowOffset = start;
+    }
+
+    /**
+     * Find the next line
+     *
+     * @return false if there are no more lines in range
+     */
+    boolean nextLine()
+            throws IOException
+    {
+        if (skipLineFeed) {
+            skipLineFeed = false;
+            if ((position < window.limit() || remap(0)) && window.get(position) == '\n') {
+                position++;
+            }
+        }
+        if (windowOffset + position >= end) {
+            return false;
+        }
+
+        int i = position;
+        while (true) {
+            int limit = window.limit();
+            while (i < limit) {
+                byte b = window.get(i);
+                if (b == '\n' || b == '\r') {
+                    skipLineFeed = b == '\r';
+                    lineStart = position;
+                    lineEnd = i;
+                    position = i + 1;
+                    return true;
+                }
+                i++;
+            }
+            int scanned = i - position;
+            if (!remap(scanned)) {
+                if (scanned == 0) {
+                    return false;
+                }
+                // The last line of the file has no terminator
+                lineStart = position;
+                lineEnd = i;
+                position = i;
+                return true;
+            }
+            i = position + scanned;
+        }
+    }
+
+    /**
+     * @return The buffer holding the current line
+     */
+    ByteBuffer getBuffer()
+    {
+        return window;
+    }
+
+    /**
+     * @return The index in {@link #getBuffer()} of the first byte of
+     * the current line
+     */
+    int getLineStart()
+    {
+        return lineStart;
+    }
+
+    /**
+     * @return The index in {@link #getBuffer()} after the last byte of
+     * the current line, excluding its terminator
+     */
+    int getLineEnd()
+    {
+        return lineEnd;
+    }
+
+    String decodeLine()
+            throws IOException
+    {
+        view.clear();
+        view.position(lineStart);
+        view.limit(lineEnd);
+        return decoder.decode(view).toString();
+    }
+
+    /**
+     * Check that the current line is valid UTF-8 without building a string
+     * from it. Lines of ASCII are checked without decoding them at all.
+     *
+     * @throws CharacterCodingException if {@link #decodeLine()} would
+     * fail for the line
+     */
+    void validateLine()
+            throws CharacterCodingException
+    {
+        int i = lineStart;
+        while (i < lineEnd && window.get(i) >= 0) {
+            i++;
+        }
+        if (i == lineEnd) {
+            return;
+        }
+        // Decoding may start here, since the bytes before are all ASCII
+        view.clear();
+        view.position(i);
+        view.limit(lineEnd);
+        decoder.reset();
+        CoderResult result;
+        do {
+            validated.clear();
+            result = decoder.decode(view, validated, true);
+            if (result.isError()) {
+                result.throwException();
+            }
+        }
+        while (result.isOverflow());
+    }
+
+    /**
+     * Map a new window starting at the current position, which must hold
+     * more than {@code minimum} bytes
+     *
+     * @return false if the file does not have that many bytes left
+     */
+    private boolean remap(int minimum)
+            throws IOException
+    {
+        long offset = windowOffset + position;
+        long available = channel.size() - offset;
+        if (available <= minimum) {
+            return false;
+        }
+        if (minimum == Integer.MAX_VALUE) {
+            throw new IOException("Line is too long to map");
+        }
+        long size = Math.min(available, Math.max(windowSize, 2L * minimum));
+        window = channel.map(READ_ONLY, offset, Math.min(size, Integer.MAX_VALUE));
+        view = window.duplicate();
+        windowOffset = offset;
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+}
@@ -18,6 +18,8 @@ import static java.lang.String.format;
 public class PrestoManagerException
         extends Exception
 {
+    private static final long serialVersionUID = 1L;
+
     public PrestoManagerException() {}
 
     public PrestoManagerException(String message)
@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reads the lines of a file from last to first
+ * <p>
+ * The file is read backwards in fixed-size blocks, so reading the last
+ * few lines of a file costs the same regardless of the file's size.
+ * Lines are split and decoded as by {@link java.io.BufferedReader#readLine()}
+ * on a UTF-8 file: a line is terminated by "\n", "\r", or "\r\n", and an
+ * empty last line is not returned.
+ */
+final class ReverseLineReader
+        implements Closeable
+{
+    private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long start;
+    private final int blockSize;
+    private final CharsetDecoder decoder = UTF_8.newDecoder();
+
+    /**
+     * Offset in the file of the first byte of {@link #buffer}
+     */
+    private long position;
+
+    /**
+     * Bytes read from the file that have not yet been returned as lines.
+     * The valid bytes are at the start of the array.
+     */
+    private byte[] buffer = new byte[0];
+    private int length;
+
+    /**
+     * Whether the bytes in the buffer form a line even if there are none;
+     * only the last line of a file is skipped when empty.
+     */
+    private boolean hasLine;
+
+    /**
+     * Offset in the file of the start of the last line returned
+     */
+    private long lineStart = -1;
+
+    /**
+     * Read the lines starting at or after {@code start} and before
+     * {@code end}. Both offsets should be the start of a line.
+     */
+    ReverseLineReader(Path file, long start, long end)
+            throws IOException
+    {
+        this(file, start, end, DEFAULT_BLOCK_SIZE);
+    }
+
+    ReverseLineReader(Path file, long start, long end, int blockSize)
+            throws IOException
+    {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Invalid range of file to read");
+        }
+        this.blockSize = blockSize;
+        this.start = start;
+        this.channel = FileChannel.open(requireNonNull(file), READ);
+        this.position = Math.max(start, Math.min(end, channel.size()));
+    }
+
+    /**
+     * Read the line before the last line returned
+     *
+     * @return The line, or null if the start of the range has been reached
+     */
+    String readPreviousLine()
+            throws IOException
+    {
+        while (true) {
+            int terminator = findLastTerminator();
+            if (terminator >= 0) {
+                String line = decode(terminator + 1, length);
+                long offset = position + terminator + 1;
+                boolean isLine = hasLine || !line.isEmpty();
+                // Drop the terminator, treating "\r\n" as a single terminator
+                length = terminator > 0
+                        && buffer[terminator] == '\n'
+                        && buffer[terminator - 1] == '\r'
+                        ? terminator - 1
+                        : terminator;
+                // Whatever precedes a terminator is a line, even if empty
+                hasLine = true;
+                if (isLine) {
+                    lineStart = offset;
+                    return line;
+                }
+            }
+            else if (position > start) {
+                readBlock();
+            }
+            else if (hasLine || length > 0) {
+                String line = decode(0, length);
+                length = 0;
+                hasLine = false;
+                lineStart = position;
+                return line;
+            }
+            else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return The offset in the file of the start of the last line returned
+     * by {@link #readPreviousLine()}
+     */
+    long getLineStart()
+    {
+        return lineStart;
+    }
+
+    /**
+     * Find the index of the last line terminator in the buffer. A "\n"
+     * at the very start of the buffer is not considered a terminator
+     * unless the start of the range has been reached, since it may be
+     * part of a "\r\n" pair.
+     */
+    private int findLastTerminator()
+    {
+        for (int i = length - 1; i >= 0; i--) {
+            byte b = buffer[i];
+            if (b == '\r' || (b == '\n' && (i > 0 || position == start))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void readBlock()
+            throws IOException
+    {
+        int toRead = (int) Math.min(blockSize, position - start);
+        long newPosition = position - toRead;
+
+        byte[] newBuffer = buffer;
+        if (buffer.length < length + toRead) {
+            newBuffer = new byte[Math.max(length + toRead, buffer.length * 2)];
+        }
+        System.arraycopy(buffer, 0, newBuffer, toRead, length);
+        buffer = newBuffer;
+
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, toRead);
+        while (target.hasRemaining()) {
+            if (channel.read(target, newPosition + target.position()) < 0) {
+                throw new EOFException("File was truncated while reading");
+            }
+        }
+        position = newPosition;
+        length += toRead;
+    }
+
+    private String decode(int from, int to)
+            throws CharacterCodingException
+    {
+        return decoder.decode(ByteBuffer.wrap(buffer, from, to - from)).toString();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.agent;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import io.airlift.log.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Finds the files of a log that is rotated by airlift
+ * <p>
+ * A log named {@code server} is made up of the live file {@code server.log}
+ * and archives named {@code server-<date>.<n>.log}, which may be compressed
+ * with gzip. The date is written as {@code yyyyMMdd} or {@code yyyy-MM-dd}.
+ */
+final class RotatedLogs
+{
+    private static final Logger LOG = Logger.get(RotatedLogs.class);
+
+    static final String LOG_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+
+    /**
+     * Number of lines at the start of a file searched for its first entry
+     */
+    private static final int MAX_LINES_BEFORE_ENTRY = 1000;
+
+    private final Path directory;
+    private final Pattern logPattern;
+    private final String dateGroup;
+    private final ToLongFunction<String> dateParser;
+    private final ConcurrentMap<Path, FirstEntry> firstEntries = new ConcurrentHashMap<>();
+
+    /**
+     * @param dateParser Function converting the value of the date group
+     * in a log entry to milliseconds since the epoch
+     */
+    RotatedLogs(Path directory, Pattern logPattern,
+            String dateGroup, ToLongFunction<String> dateParser)
+    {
+        this.directory = requireNonNull(directory);
+        this.logPattern = requireNonNull(logPattern);
+        this.dateGroup = requireNonNull(dateGroup);
+        this.dateParser = requireNonNull(dateParser);
+    }
+
+    static boolean isCompressed(Path file)
+    {
+        return file.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Get the files of a log, oldest first
+     *
+     * @return The files, or an empty list if there is no log with the name
+     */
+    List<Path> getFiles(String name)
+            throws IOException
+    {
+        Pattern archivePattern = Pattern.compile(Pattern.quote(name)
+                + "-(?<date>[0-9]{4}-?[0-9]{2}-?[0-9]{2})\\.(?<index>[0-9]{1,9})"
+                + Pattern.quote(LOG_SUFFIX) + "(" + Pattern.quote(COMPRESSED_SUFFIX) + ")?");
+        String liveName = name + LOG_SUFFIX;
+
+        List<Archive> archives = new ArrayList<>();
+        Path live = null;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                String fileName = file.getFileName().toString();
+                Matcher matcher = archivePattern.matcher(fileName);
+                if (fileName.equals(liveName)) {
+                    live = file;
+                }
+                else if (matcher.matches()) {
+                    archives.add(new Archive(file,
+                            matcher.group("date").replace("-", ""),
+                            Integer.parseInt(matcher.group("index"))));
+                }
+            }
+        }
+        // Forget archives that have been deleted
+        firstEntries.keySet().removeIf(file -> !Files.exists(file));
+
+        archives.sort(Comparator.comparing((Archive archive) -> archive.date)
+                .thenComparingInt(archive -> archive.index));
+        ImmutableList.Builder<Path> result = ImmutableList.builder();
+        archives.forEach(archive -> result.add(archive.file));
+        if (live != null) {
+            result.add(live);
+        }
+        return result.build();
+    }
+
+    /**
+     * Remove the files that can not have entries in a time range
+     * <p>
+     * The entries of a file are assumed to be no later than the first
+     * entry of any later file. Files whose first entry can not be read
+     * are kept, as are files that do not start with an entry, since the
+     * default entry is added to them.
+     *
+     * @param files The files of a log, oldest first
+     * @param start The start of the range in milliseconds since the epoch
+     * @param end The end of the range in milliseconds since the epoch
+     */
+    List<Path> getFilesInRange(List<Path> files, long start, long end)
+    {
+        List<Path> result = new ArrayList<>();
+        Long nextFirstTime = null;
+        for (Path file : Lists.reverse(files)) {
+            FirstEntry firstEntry = getFirstEntry(file);
+            Long firstTime = firstEntry == null ? null : firstEntry.time;
+            boolean endsBeforeStart = nextFirstTime != null && nextFirstTime < start;
+            boolean startsAfterEnd = firstTime != null && firstEntry.atStart && firstTime > end;
+            if (!endsBeforeStart && !startsAfterEnd) {
+                result.add(file);
+            }
+            if (firstTime != null) {
+                nextFirstTime = firstTime;
+            }
+        }
+        return Lists.reverse(result);
+    }
+
+    /**
+     * @return The first entry in the file, or null if the file can not
+     * be read
+     */
+    private FirstEntry getFirstEntry(Path file)
+    {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            return null;
+        }
+        FirstEntry cached = firstEntries.get(file);
+        if (cached != null && cached.isFor(attributes)) {
+            return cached;
+        }
+
+        Long time = null;
+        boolean atStart = false;
+        try (BufferedReader reader = openLog(file)) {
+            Matcher matcher = logPattern.matcher("");
+            for (int i = 0; i < MAX_LINES_BEFORE_ENTRY; i++) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                if (matcher.reset(line).matches()) {
+                    time = dateParser.applyAsLong(matcher.group(dateGroup));
+                    atStart = i == 0;
+                    break;
+                }
+            }
+        }
+        catch (IOException | DateTimeException e) {
+            LOG.debug(e, "Could not read first log entry of %s", file);
+        }
+        FirstEntry firstEntry = new FirstEntry(attributes, time, atStart);
+        firstEntries.put(file, firstEntry);
+        return firstEntry;
+    }
+
+    private static BufferedReader openLog(Path file)
+            throws IOException
+    {
+        InputStream input = Files.newInputStream(file);
+        try {
+            if (isCompressed(file)) {
+                input = new GZIPInputStream(input);
+            }
+        }
+        catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(input, UTF_8.newDecoder()));
+    }
+
+    private static final class Archive
+    {
+        private final Path file;
+        private final String date;
+        private final int index;
+
+        private Archive(Path file, String date, int index)
+        {
+            this.file = file;
+            this.date = date;
+            this.index = index;
+        }
+    }
+
+    private static final class FirstEntry
+    {
+        private final long size;
+        private final long lastModified;
+        /**
+         * The time of the first line matching the log pattern, or null
+         */
+        private final Long time;
+        /**
+         * Whether that line is the first line of the file
+         */
+        private final boolean atStart;
+
+        private FirstEntry(BasicFileAttributes attributes, Long time, boolean atStart)
+        {
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.time = time;
+            this.atStart = atStart;
+        }
+
+        private boolean isFor(BasicFileAttributes attributes)
+        {
+            return size == attributes.size()
+                    && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+}
@@ -16,6 +16,8 @@ package com.teradata.prestomanager.agent.api;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.teradata.prestomanager.agent.LogsHandler;
+import com.teradata.prestomanager.common.LogFormat;
+import io.airlift.units.Duration;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -29,10 +31,15 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
 
 import java.time.Instant;
+import java.util.List;
 
 import static java.util.Objects.requireNonNull;
 
@@ -60,34 +67,107 @@ public class LogsAPI
 
     @GET
     @Path("/{file}")
-    @Produces(MediaType.APPLICATION_JSON)
-    @ApiOperation(value = "Get Presto log file")
+    @Produces({MediaType.APPLICATION_JSON, LogFormat.NDJSON_MEDIA_TYPE, MediaType.SERVER_SENT_EVENTS})
+    @ApiOperation(value = "Get Presto log file",
+            notes = "A name such as \"server\" that is not a file reads the rotated log "
+                    + "made up of server.log and its archives, oldest first. "
+                    + "With follow=true, the last n entries and then each new entry are "
+                    + "sent as server-sent events whose data are JSON strings. "
+                    + "With a cursor, the first n entries of a log file after it are returned, "
+                    + "and the cursor after them is in the X-Log-Cursor header. "
+                    + "With format=ndjson, each entry is a line with a JSON object of its "
+                    + "timestamp in milliseconds, the named groups of its header, and its "
+                    + "other lines as details")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Retrieved logs"),
             @ApiResponse(code = 400, message = "Invalid parameters"),
-            @ApiResponse(code = 404, message = "Resource not found")})
-    public Response getLog(
-            @PathParam("file") @ApiParam("The name of a file") String file,
+            @ApiResponse(code = 404, message = "Resource not found"),
+            @ApiResponse(code = 410, message = "Cursor is no longer valid"),
+            @ApiResponse(code = 503, message = "Too many logs are being read or followed, or reading timed out")})
+    public void getLog(
+            @PathParam("file") @ApiParam("The name of a file or rotated log") String file,
             @QueryParam("from") @ApiParam("Ignore logs before this date") Instant fromDate,
             @QueryParam("to") @ApiParam("Ignore logs after this date") Instant toDate,
             @QueryParam("level") @ApiParam("Only get logs of this level") @DefaultValue(LogsHandler.DEFAULT_LOG_LEVEL) String level,
-            @QueryParam("n") @ApiParam("The maximum number of log entries to get") Integer maxEntries)
+            @QueryParam("n") @ApiParam("The maximum number of log entries to get") Integer maxEntries,
+            @QueryParam("q") @ApiParam("Only get logs containing all of these words") String search,
+            @QueryParam("follow") @ApiParam("Stream new entries as they are written") @DefaultValue("false") boolean follow,
+            @QueryParam("cursor") @ApiParam("Continue from the cursor returned with the previous page; empty to start at the beginning") String cursor,
+            @QueryParam("format") @ApiParam("JSON or NDJSON") @DefaultValue("JSON") LogFormat format,
+            @Suspended AsyncResponse asyncResponse)
     {
-        return logsHandler.getLogs(file, fromDate, toDate, level, maxEntries);
+        if (follow) {
+            // Followers are limited separately, and stay until the client disconnects
+            asyncResponse.resume(logsHandler.followLogs(file, fromDate, toDate, level, maxEntries, search, cursor, format));
+            return;
+        }
+        if (cursor != null) {
+            logsHandler.readAsync(asyncResponse,
+                    () -> logsHandler.getLogPage(file, fromDate, toDate, level, maxEntries, search, cursor, format));
+            return;
+        }
+        logsHandler.readAsync(asyncResponse,
+                () -> logsHandler.getLogs(file, fromDate, toDate, level, maxEntries, search, format));
+    }
+
+    @GET
+    @Path("/{file}/histogram")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Count Presto log entries",
+            notes = "Entries are counted by the values of named groups of the log entry "
+                    + "pattern, such as level, class and thread, and by interval of time. "
+                    + "Only the counts are kept, so any amount of logs can be counted")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Counted logs"),
+            @ApiResponse(code = 400, message = "Invalid parameters"),
+            @ApiResponse(code = 404, message = "Resource not found"),
+            @ApiResponse(code = 503, message = "Too many logs are being read, or reading timed out")})
+    public void getHistogram(
+            @PathParam("file") @ApiParam("The name of a file or rotated log") String file,
+            @QueryParam("from") @ApiParam("Ignore logs before this date") Instant fromDate,
+            @QueryParam("to") @ApiParam("Ignore logs after this date") Instant toDate,
+            @QueryParam("level") @ApiParam("Only count logs of this level") @DefaultValue(LogsHandler.DEFAULT_LOG_LEVEL) String level,
+            @QueryParam("q") @ApiParam("Only count logs containing all of these words") String search,
+            @QueryParam("by") @ApiParam("The groups to count by") List<String> groups,
+            @QueryParam("interval") @ApiParam("The length of time to count by, such as 1h") Duration interval,
+            @Suspended AsyncResponse asyncResponse)
+    {
+        logsHandler.readAsync(asyncResponse, () -> logsHandler.getHistogram(file, fromDate, toDate, level, search, groups,
+                interval == null ? 0 : interval.toMillis()));
     }
 
     @DELETE
     @Path("/{file}")
     @Produces(MediaType.TEXT_PLAIN)
-    @ApiOperation(value = "Delete Presto logs")
+    @ApiOperation(value = "Delete Presto logs",
+            notes = "With a date, the entries before it are deleted in the background, "
+                    + "and the response names a job whose progress can be checked")
     @ApiResponses(value = {
-            @ApiResponse(code = 202, message = "Deleted logs"),
+            @ApiResponse(code = 202, message = "Deleting logs"),
+            @ApiResponse(code = 204, message = "Deleted logs"),
             @ApiResponse(code = 400, message = "Invalid parameters"),
             @ApiResponse(code = 404, message = "Resource not found")})
     public Response deleteLog(
             @PathParam("file") @ApiParam("The name of a file") String file,
-            @QueryParam("to") @ApiParam("Ignore logs after this date") Instant toDate)
+            @QueryParam("to") @ApiParam("Ignore logs after this date") Instant toDate,
+            @Context UriInfo uriInfo)
+    {
+        return logsHandler.deleteLogs(file, toDate, uriInfo.getBaseUriBuilder()
+                .path(LogsAPI.class)
+                .path(LogsAPI.class, "getJobStatus"));
+    }
+
+    @GET
+    @Path("/{file}/jobs/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Get the status of a log deletion")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Retrieved status"),
+            @ApiResponse(code = 404, message = "Job not found")})
+    public Response getJobStatus(
+            @PathParam("file") @ApiParam("The name of the file being trimmed") String file,
+            @PathParam("id") @ApiParam("The ID of the job") String id)
     {
-        return logsHandler.deleteLogs(file, toDate);
+        return logsHandler.getJobStatus(file, id);
     }
 }
@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.inject.Guice;
+import com.teradata.prestomanager.agent.AgentConfig;
+import com.teradata.prestomanager.agent.LogsHandler;
+import com.teradata.prestomanager.agent.PrestoConfig;
+import com.teradata.prestomanager.agent.PrestoRpmConfig;
+import com.teradata.prestomanager.agent.api.LogsAPI;
+import com.teradata.prestomanager.common.LogFormat;
+import io.airlift.units.DataSize;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Measures the time taken by {@link LogsHandler} to answer queries on a
+ * synthetic Presto server log, from reading the file to writing the
+ * response
+ * <p>
+ * The "logEntries" counter is the number of entries in the log, so its
+ * rate is the number of log entries processed per second. The allocation
+ * rate is reported when run with {@code -prof gc}. Results are not cached
+ * between queries.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+public class BenchmarkLogsHandler
+{
+    private static final String LOG_FILE = "server.log";
+    private static final String TRIMMED_LOG_FILE = "trimmed.log";
+    private static final int TAIL_ENTRIES = 100;
+
+    @Param("100000")
+    private int entries;
+
+    @Param({"0", "0.2"})
+    private double multiLineRatio;
+
+    @Param({"false", "true"})
+    private boolean memoryMapped;
+
+    @Param({"false", "true"})
+    private boolean indexed;
+
+    private Path directory;
+    private LogsHandler logsHandler;
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        directory = Files.createTempDirectory("log-benchmark");
+        Path logDirectory = Files.createDirectory(directory.resolve("log"));
+        LogGenerator.generate(logDirectory.resolve(LOG_FILE), entries, multiLineRatio, 42);
+
+        AgentConfig config = new AgentConfig()
+                .setLogIndexEnabled(indexed)
+                .setLogIndexDirectory(directory.resolve("index").toString())
+                .setLogFilterMemoryMapped(memoryMapped)
+                .setLogCacheMaxSize(new DataSize(0, DataSize.Unit.BYTE));
+        PrestoConfig prestoConfig = new PrestoRpmConfig()
+                .setLogDirectory(logDirectory.toString());
+        logsHandler = Guice.createInjector(binder -> {
+            binder.bind(AgentConfig.class).toInstance(config);
+            binder.bind(PrestoConfig.class).toInstance(prestoConfig);
+        }).getInstance(LogsHandler.class);
+    }
+
+    @TearDown
+    public void tearDown()
+            throws IOException
+    {
+        MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Benchmark
+    public long filterByLevel(Counters counters)
+            throws IOException
+    {
+        counters.logEntries += entries;
+        return write(logsHandler.getLogs(LOG_FILE, null, null, "ERROR", null, null, LogFormat.JSON));
+    }
+
+    @Benchmark
+    public long filterByDateRange(Counters counters)
+            throws IOException
+    {
+        counters.logEntries += entries;
+        return write(logsHandler.getLogs(LOG_FILE, LogGenerator.timeOf(entries / 4),
+                LogGenerator.timeOf(entries * 3 / 4), LogsHandler.DEFAULT_LOG_LEVEL, null, null, LogFormat.JSON));
+    }
+
+    @Benchmark
+    public long tail(Counters counters)
+            throws IOException
+    {
+        counters.logEntries += entries;
+        return write(logsHandler.getLogs(LOG_FILE, null, null,
+                LogsHandler.DEFAULT_LOG_LEVEL, TAIL_ENTRIES, null, LogFormat.JSON));
+    }
+
+    /**
+     * Delete the first half of a copy of the log, and wait for the deletion
+     * to finish
+     */
+    @Benchmark
+    public Object deleteRange(TrimmedLog trimmedLog, Counters counters)
+            throws InterruptedException
+    {
+        counters.logEntries += entries;
+        Response response = logsHandler.deleteLogs(TRIMMED_LOG_FILE, LogGenerator.timeOf(entries / 2),
+                UriBuilder.fromResource(LogsAPI.class).path(LogsAPI.class, "getJobStatus"));
+        String location = response.getHeaderString(HttpHeaders.LOCATION);
+        if (location == null) {
+            throw new IllegalStateException("Deletion was not started: " + response.getEntity());
+        }
+        String jobId = location.substring(location.lastIndexOf('/') + 1);
+        while (true) {
+            Map<?, ?> status = (Map<?, ?>) logsHandler.getJobStatus(TRIMMED_LOG_FILE, jobId).getEntity();
+            if (!"RUNNING".equals(status.get("state"))) {
+                return status;
+            }
+            Thread.sleep(0, 100_000);
+        }
+    }
+
+    /**
+     * @return The number of bytes written
+     */
+    private static long write(Response response)
+            throws IOException
+    {
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            throw new IllegalStateException("Query failed: " + response.getEntity());
+        }
+        CountingOutputStream output = new CountingOutputStream(ByteStreams.nullOutputStream());
+        ((StreamingOutput) response.getEntity()).write(output);
+        return output.getCount();
+    }
+
+    /**
+     * A fresh copy of the log for each deletion
+     */
+    @State(Scope.Thread)
+    public static class TrimmedLog
+    {
+        @Setup(Level.Invocation)
+        public void copy(BenchmarkLogsHandler benchmark)
+                throws IOException
+        {
+            Path logDirectory = benchmark.directory.resolve("log");
+            Files.copy(logDirectory.resolve(LOG_FILE), logDirectory.resolve(TRIMMED_LOG_FILE),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters
+    {
+        public long logEntries;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            logEntries = 0;
+        }
+    }
+
+    public static void main(String[] args)
+            throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(".*" + BenchmarkLogsHandler.class.getSimpleName() + ".*")
+                .build();
+        new Runner(options).run();
+    }
+}
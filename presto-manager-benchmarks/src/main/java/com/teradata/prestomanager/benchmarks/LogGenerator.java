@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes synthetic Presto server logs, in the format matched by the
+ * default log entry pattern
+ * <p>
+ * Entries are {@link #INTERVAL_MILLIS} apart, starting at {@link #START},
+ * so the time of each entry is known without reading the log. Most
+ * entries are at level INFO; the given fraction of entries is followed
+ * by a stack trace.
+ */
+final class LogGenerator
+{
+    static final Instant START = Instant.parse("2017-06-01T00:00:00Z");
+    static final long INTERVAL_MILLIS = 100;
+
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ").withZone(ZoneOffset.UTC);
+
+    private static final String[] THREADS = {"main", "http-worker-12", "query-execution-3", "task-notification-7"};
+    private static final String[] CLASSES = {
+            "com.facebook.presto.execution.QueryStateMachine",
+            "com.facebook.presto.server.PluginManager",
+            "com.facebook.presto.execution.SqlTaskManager",
+            "io.airlift.http.client.jetty.JettyHttpClient"};
+
+    private LogGenerator() {}
+
+    /**
+     * @param multiLineRatio The fraction of entries with a stack trace
+     */
+    static void generate(Path file, int entries, double multiLineRatio, long seed)
+            throws IOException
+    {
+        Random random = new Random(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, UTF_8)) {
+            for (int i = 0; i < entries; i++) {
+                writer.write(DATE_FORMAT.format(timeOf(i)));
+                writer.write('\t');
+                writer.write(randomLevel(random));
+                writer.write('\t');
+                writer.write(THREADS[random.nextInt(THREADS.length)]);
+                writer.write('\t');
+                writer.write(CLASSES[random.nextInt(CLASSES.length)]);
+                writer.write("\tQuery 20170601_000000_");
+                writer.write(String.format("%05d", random.nextInt(100_000)));
+                writer.write("_abcde state changed to RUNNING after ");
+                writer.write(Integer.toString(random.nextInt(10_000)));
+                writer.write("ms");
+                writer.newLine();
+                if (random.nextDouble() < multiLineRatio) {
+                    writeStackTrace(writer, random);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The time of the entry with the given index
+     */
+    static Instant timeOf(int entry)
+    {
+        return START.plusMillis(entry * INTERVAL_MILLIS);
+    }
+
+    private static String randomLevel(Random random)
+    {
+        int level = random.nextInt(100);
+        if (level < 1) {
+            return "ERROR";
+        }
+        if (level < 5) {
+            return "WARN";
+        }
+        if (level < 20) {
+            return "DEBUG";
+        }
+        return "INFO";
+    }
+
+    private static void writeStackTrace(BufferedWriter writer, Random random)
+            throws IOException
+    {
+        writer.write("java.lang.IllegalStateException: Task failed");
+        writer.newLine();
+        int frames = 5 + random.nextInt(16);
+        for (int i = 0; i < frames; i++) {
+            writer.write("\tat ");
+            writer.write(CLASSES[random.nextInt(CLASSES.length)]);
+            writer.write(".run(Unknown Source:");
+            writer.write(Integer.toString(random.nextInt(1000)));
+            writer.write(")");
+            writer.newLine();
+        }
+    }
+}
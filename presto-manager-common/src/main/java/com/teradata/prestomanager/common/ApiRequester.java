@@ -20,6 +20,7 @@ import javax.annotation.concurrent.ThreadSafe;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
@@ -27,24 +28,31 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 
 import java.net.URI;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.Objects.requireNonNull;
 
 @ThreadSafe
 public class ApiRequester
 {
+    /**
+     * The request property holding the future of an asynchronous request's
+     * response. Connectors may abort the request when it is cancelled, since
+     * Jersey does not pass the cancellation on.
+     */
+    public static final String CANCELLATION_PROPERTY = ApiRequester.class.getName() + ".cancellation";
+
     private final Client client;
     private final UriCopyBuilder uriTemplate;
     private final HttpMethod method;
     private final MultivaluedMap<String, Object> headers;
     private final String mediaType;
     @Nullable
-    private final Entity entity;
+    private final Entity<?> entity;
 
     private ApiRequester(Client client,
             UriBuilder uriBuilder, HttpMethod method,
-            Entity entity, MultivaluedMap<String, Object> headers,
+            Entity<?> entity, MultivaluedMap<String, Object> headers,
             String mediaType)
     {
         this.client = requireNonNull(client);
@@ -56,6 +64,11 @@ public class ApiRequester
         this.entity = entity;
     }
 
+    public HttpMethod getMethod()
+    {
+        return method;
+    }
+
     /**
      * Send this request to the given base URI.
      * <p>
@@ -75,13 +88,33 @@ public class ApiRequester
     /**
      * Send this request to the given base URI.
      * <p>
-     * Identical to {@link #send(URI)}, except the request is sent
-     * asynchronously in a {@link Future}.
+     * Identical to {@link #send(URI)}, except the request is sent on the
+     * client's asynchronous executor, and the response is completed when it
+     * arrives. Cancelling the response aborts the request if the client's
+     * connector supports {@link #CANCELLATION_PROPERTY}, and a response that
+     * arrives after that is closed.
      */
-    public Future<Response> sendAsync(URI uri)
+    public CompletableFuture<Response> sendAsync(URI uri)
     {
-        Invocation invocation = createInvocation(uri);
-        return invocation.submit();
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        Invocation invocation = createInvocation(uri).property(CANCELLATION_PROPERTY, response);
+        invocation.submit(new InvocationCallback<Response>()
+        {
+            @Override
+            public void completed(Response result)
+            {
+                if (!response.complete(result)) {
+                    result.close();
+                }
+            }
+
+            @Override
+            public void failed(Throwable throwable)
+            {
+                response.completeExceptionally(throwable);
+            }
+        });
+        return response;
     }
 
     private Invocation createInvocation(URI uri)
@@ -135,7 +168,7 @@ public class ApiRequester
         private UriBuilder uriBuilder;
         private Class<?> resource;
         private HttpMethod method;
-        private Entity entity;
+        private Entity<?> entity;
         private MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
         private String mediaType = MediaType.TEXT_PLAIN;
 
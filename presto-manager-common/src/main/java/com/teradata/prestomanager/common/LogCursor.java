@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.common;
+
+import java.util.Base64;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A position in a log file, for paging through it
+ * <p>
+ * Agents return the cursor after each page of a log file in the
+ * {@link #HEADER} header. To clients a cursor is an opaque string, which
+ * holds the byte offset of the position, the key of the file, and a
+ * checksum of the start of the file before the position. A cursor into a
+ * file that has since been rotated, truncated or trimmed can then be
+ * rejected, even if the file has grown past the position again.
+ */
+public final class LogCursor
+{
+    public static final String HEADER = "X-Log-Cursor";
+
+    private static final char SEPARATOR = ':';
+
+    private final String fileKey;
+    private final long prefixChecksum;
+    private final long offset;
+
+    /**
+     * @param prefixChecksum A checksum of the start of the file before the
+     * offset, which the agent computes
+     */
+    public LogCursor(String fileKey, long prefixChecksum, long offset)
+    {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset can not be negative");
+        }
+        this.fileKey = requireNonNull(fileKey);
+        this.prefixChecksum = prefixChecksum;
+        this.offset = offset;
+    }
+
+    public String getFileKey()
+    {
+        return fileKey;
+    }
+
+    public long getPrefixChecksum()
+    {
+        return prefixChecksum;
+    }
+
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    public String encode()
+    {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((offset + String.valueOf(SEPARATOR) + prefixChecksum
+                        + SEPARATOR + fileKey).getBytes(UTF_8));
+    }
+
+    /**
+     * @return The cursor, or null if the string is not an encoded cursor
+     */
+    public static LogCursor decode(String cursor)
+    {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), UTF_8);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        int separator = decoded.indexOf(SEPARATOR);
+        int secondSeparator = decoded.indexOf(SEPARATOR, separator + 1);
+        if (separator < 0 || secondSeparator < 0) {
+            return null;
+        }
+        try {
+            long offset = Long.parseLong(decoded.substring(0, separator));
+            long prefixChecksum = Long.parseLong(decoded.substring(separator + 1, secondSeparator));
+            return offset < 0
+                    ? null
+                    : new LogCursor(decoded.substring(secondSeparator + 1), prefixChecksum, offset);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.common;
+
+import javax.ws.rs.core.MediaType;
+
+import java.util.Locale;
+
+/**
+ * The formats in which log entries can be returned
+ * <p>
+ * {@link #JSON} is a JSON array of the entries as strings. {@link #NDJSON}
+ * is one JSON object per line for each entry, with the time of the entry
+ * in milliseconds since the epoch as {@link #TIMESTAMP_FIELD}, then the
+ * values of the named groups of the log entry pattern, and the lines of
+ * the entry after the first, if any, as {@link #DETAILS_FIELD}.
+ */
+public enum LogFormat
+{
+    JSON(MediaType.APPLICATION_JSON), NDJSON(LogFormat.NDJSON_MEDIA_TYPE);
+
+    public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+    public static final String TIMESTAMP_FIELD = "timestamp";
+    public static final String DETAILS_FIELD = "details";
+
+    private final String mediaType;
+
+    LogFormat(String mediaType)
+    {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType()
+    {
+        return mediaType;
+    }
+
+    public static LogFormat fromString(String format)
+    {
+        return valueOf(format.toUpperCase(Locale.ENGLISH));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.common;
+
+/**
+ * Parser for the timestamps written by Presto's logger
+ * <p>
+ * Parsing a timestamp with a {@link java.time.format.DateTimeFormatter} is
+ * one of the most expensive steps in filtering logs. This parser handles
+ * only the layout {@code yyyy-MM-ddTHH:mm:ss[.SSS]+HHMM} and allocates
+ * nothing; callers fall back to a formatter for anything else.
+ */
+public final class LogTimestamps
+{
+    /**
+     * Returned when a string is not a valid timestamp in the fast layout
+     */
+    public static final long UNPARSED = Long.MIN_VALUE;
+
+    private static final int SHORT_LENGTH = "0000-00-00T00:00:00+0000".length();
+    private static final int LONG_LENGTH = "0000-00-00T00:00:00.000+0000".length();
+    private static final long DAYS_0000_TO_1970 = 719528;
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final int MAX_OFFSET_HOURS = 18;
+
+    private LogTimestamps() {}
+
+    /**
+     * Parse a timestamp in the layout {@code yyyy-MM-ddTHH:mm:ss[.SSS]+HHMM}
+     * <p>
+     * Anything this method parses is parsed to the same instant by an ISO
+     * local date time followed by the offset pattern {@code Z}. Strings in
+     * any other layout, or with out of range fields, are left to such a
+     * format to parse or reject.
+     *
+     * @return Milliseconds since the epoch, or {@link #UNPARSED}
+     */
+    public static long parseEpochMillis(CharSequence s)
+    {
+        int length = s.length();
+        if (length != SHORT_LENGTH && length != LONG_LENGTH) {
+            return UNPARSED;
+        }
+        if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+                || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return UNPARSED;
+        }
+        int year = parseDigits(s, 0, 4);
+        int month = parseDigits(s, 5, 2);
+        int day = parseDigits(s, 8, 2);
+        int hour = parseDigits(s, 11, 2);
+        int minute = parseDigits(s, 14, 2);
+        int second = parseDigits(s, 17, 2);
+
+        int millis = 0;
+        int offsetStart = 19;
+        if (length == LONG_LENGTH) {
+            if (s.charAt(19) != '.') {
+                return UNPARSED;
+            }
+            millis = parseDigits(s, 20, 3);
+            offsetStart = 23;
+        }
+        char sign = s.charAt(offsetStart);
+        int offsetHours = parseDigits(s, offsetStart + 1, 2);
+        int offsetMinutes = parseDigits(s, offsetStart + 3, 2);
+
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59
+                || second < 0 || second > 59 || millis < 0
+                || (sign != '+' && sign != '-') || offsetMinutes < 0 || offsetMinutes > 59
+                || offsetHours < 0 || offsetHours > MAX_OFFSET_HOURS
+                || (offsetHours == MAX_OFFSET_HOURS && offsetMinutes > 0)) {
+            return UNPARSED;
+        }
+
+        int offsetSeconds = offsetHours * 3600 + offsetMinutes * 60;
+        long epochSecond = epochDay(year, month, day) * SECONDS_PER_DAY
+                + hour * 3600 + minute * 60 + second
+                - (sign == '+' ? offsetSeconds : -offsetSeconds);
+        return epochSecond * 1000 + millis;
+    }
+
+    /**
+     * @return The value of the digits, or -1 if any character is not
+     * an ASCII digit
+     */
+    private static int parseDigits(CharSequence s, int start, int count)
+    {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int lengthOfMonth(int year, int month)
+    {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isLeapYear(int year)
+    {
+        return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * The same as {@link java.time.LocalDate#toEpochDay()}, for
+     * non-negative years
+     */
+    private static long epochDay(int year, int month, int day)
+    {
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12 + day - 1;
+        if (month > 2) {
+            total -= isLeapYear(year) ? 1 : 2;
+        }
+        return total - DAYS_0000_TO_1970;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.StringJoiner;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Utility class for writing and reading server-sent events
+ * <p>
+ * Only the "event" and "data" fields are used. The data of each event
+ * written by this class is a single line, such as a JSON value.
+ */
+public final class ServerSentEvents
+{
+    private ServerSentEvents() {}
+
+    /**
+     * Write an event of the default type, "message"
+     */
+    public static void writeEvent(Writer writer, String data)
+            throws IOException
+    {
+        writer.write("data: " + checkSingleLine(data) + "\n\n");
+    }
+
+    public static void writeEvent(Writer writer, String event, String data)
+            throws IOException
+    {
+        writer.write("event: " + checkSingleLine(event) + "\n");
+        writeEvent(writer, data);
+    }
+
+    /**
+     * Write a comment, which is ignored by clients but keeps the connection
+     * from being idle
+     */
+    public static void writeComment(Writer writer, String comment)
+            throws IOException
+    {
+        writer.write(": " + checkSingleLine(comment) + "\n\n");
+    }
+
+    private static String checkSingleLine(String value)
+    {
+        if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Event field contains a line break");
+        }
+        return value;
+    }
+
+    /**
+     * Read the next event from a stream
+     *
+     * @return The event, or null at the end of the stream
+     */
+    public static Event readEvent(BufferedReader reader)
+            throws IOException
+    {
+        String event = "message";
+        StringJoiner data = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (data != null) {
+                    return new Event(event, data.toString());
+                }
+                event = "message";
+                continue;
+            }
+            if (line.startsWith(":")) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            String field = colon < 0 ? line : line.substring(0, colon);
+            String value = colon < 0 ? "" : line.substring(colon + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            if (field.equals("event")) {
+                event = value;
+            }
+            else if (field.equals("data")) {
+                if (data == null) {
+                    data = new StringJoiner("\n");
+                }
+                data.add(value);
+            }
+        }
+        return null;
+    }
+
+    public static final class Event
+    {
+        private final String type;
+        private final String data;
+
+        private Event(String type, String data)
+        {
+            this.type = requireNonNull(type);
+            this.data = requireNonNull(data);
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        public String getData()
+        {
+            return data;
+        }
+    }
+}
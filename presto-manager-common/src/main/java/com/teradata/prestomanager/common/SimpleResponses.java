@@ -44,11 +44,21 @@ public final class SimpleResponses
         return simpleResponse(Status.NOT_FOUND, message);
     }
 
+    public static Response gone(String message)
+    {
+        return simpleResponse(Status.GONE, message);
+    }
+
     public static Response serverError(String message)
     {
         return simpleResponse(Status.INTERNAL_SERVER_ERROR, message);
     }
 
+    public static Response serviceUnavailable(String message)
+    {
+        return simpleResponse(Status.SERVICE_UNAVAILABLE, message);
+    }
+
     /* The same methods, but with format strings and varargs */
 
     public static Response badRequest(String format, Object... objects)
@@ -61,8 +71,18 @@ public final class SimpleResponses
         return notFound(format(format, objects));
     }
 
+    public static Response gone(String format, Object... objects)
+    {
+        return gone(format(format, objects));
+    }
+
     public static Response serverError(String format, Object... objects)
     {
         return serverError(format(format, objects));
     }
+
+    public static Response serviceUnavailable(String format, Object... objects)
+    {
+        return serviceUnavailable(format(format, objects));
+    }
 }
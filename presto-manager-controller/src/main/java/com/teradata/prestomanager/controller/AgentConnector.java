@@ -0,0 +1,402 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.controller;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.teradata.prestomanager.common.ApiRequester;
+import io.airlift.log.Logger;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.PoolingHttpDestination;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BytesContentProvider;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.message.internal.Statuses;
+import org.weakref.jmx.Managed;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToIntFunction;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Sends the controller's requests to agents with a Jetty HTTP client, which
+ * keeps the connections to each agent open to be reused
+ * <p>
+ * At most {@code dispatch.max-connections-per-agent} connections are open
+ * to each agent, and further requests to it wait for one of them. At most
+ * {@code dispatch.max-connections} requests are sent or having their
+ * responses read at once across all agents, and further requests wait up
+ * to {@code dispatch.connect-timeout} for one of them to finish. Event
+ * streams are read until the client stops following a log, so they are
+ * limited separately, to {@code dispatch.max-streams} at once. Idle
+ * connections are closed after {@code dispatch.idle-timeout}. The numbers
+ * of connections and requests are exported over JMX.
+ * <p>
+ * Asynchronous requests hold no thread while they wait for a response.
+ * Their callbacks run on a pool of at most {@code dispatch.max-connections}
+ * threads, so that reading a response's entity does not block the HTTP
+ * client's threads that receive it.
+ * <p>
+ * Responses are not decompressed here, so that
+ * {@link ResponseCompressionFilter} can count their bytes.
+ */
+@ThreadSafe
+public final class AgentConnector
+        implements Connector
+{
+    private static final Logger LOGGER = Logger.get(AgentConnector.class);
+
+    private final HttpClient httpClient;
+    private final ExecutorService callbackExecutor;
+    private final int maxConnections;
+    private final Semaphore connectionPermits;
+    private final int maxStreams;
+    private final Semaphore streamPermits;
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+
+    @Inject
+    public AgentConnector(ControllerConfig config)
+    {
+        maxConnections = config.getDispatchMaxConnections();
+        connectionPermits = new Semaphore(maxConnections);
+        maxStreams = config.getDispatchMaxStreams();
+        streamPermits = new Semaphore(maxStreams);
+        connectTimeoutMillis = config.getDispatchConnectTimeout().toMillis();
+        readTimeoutMillis = config.getDispatchTimeout().toMillis();
+
+        QueuedThreadPool executor = new QueuedThreadPool();
+        executor.setName("agent-http-client");
+        executor.setDaemon(true);
+        httpClient = new HttpClient();
+        httpClient.setExecutor(executor);
+        httpClient.setMaxConnectionsPerDestination(config.getDispatchMaxConnectionsPerAgent());
+        httpClient.setConnectTimeout(connectTimeoutMillis);
+        httpClient.setIdleTimeout(config.getDispatchIdleTimeout().toMillis());
+        try {
+            httpClient.start();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Could not start HTTP client", e);
+        }
+        httpClient.getContentDecoderFactories().clear();
+
+        ThreadPoolExecutor callbackExecutor = new ThreadPoolExecutor(maxConnections, maxConnections,
+                60, SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("agent-response-%s").setDaemon(true).build());
+        callbackExecutor.allowCoreThreadTimeOut(true);
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public ClientResponse apply(ClientRequest request)
+    {
+        Request agentRequest = prepareRequest(request);
+        InputStreamResponseListener listener = new InputStreamResponseListener();
+        agentRequest.send(listener);
+        org.eclipse.jetty.client.api.Response agentResponse;
+        try {
+            agentResponse = listener.get(readTimeoutMillis, MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            agentRequest.abort(e);
+            throw new ProcessingException(new SocketTimeoutException("Read timed out"));
+        }
+        catch (ExecutionException e) {
+            throw new ProcessingException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            agentRequest.abort(e);
+            throw new ProcessingException("Interrupted while waiting for response", e);
+        }
+
+        return toClientResponse(request, agentResponse, listener);
+    }
+
+    /**
+     * Wait for a connection permit, or a stream permit for an event stream,
+     * and create the request to send. The permit is released once the
+     * response has been read, or the request failed.
+     */
+    private Request prepareRequest(ClientRequest request)
+    {
+        boolean stream = request.getAcceptableMediaTypes().contains(MediaType.SERVER_SENT_EVENTS_TYPE);
+        Semaphore permits = stream ? streamPermits : connectionPermits;
+        try {
+            if (!permits.tryAcquire(connectTimeoutMillis, MILLISECONDS)) {
+                throw new ProcessingException(stream
+                        ? "Too many event streams from agents"
+                        : "Too many requests to agents");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted while waiting to send request", e);
+        }
+
+        Request agentRequest;
+        try {
+            agentRequest = newRequest(request);
+        }
+        catch (IOException | RuntimeException e) {
+            permits.release();
+            throw new ProcessingException("Could not write request", e);
+        }
+        agentRequest.onComplete(result -> permits.release());
+        return agentRequest;
+    }
+
+    private static ClientResponse toClientResponse(ClientRequest request,
+            org.eclipse.jetty.client.api.Response agentResponse, InputStreamResponseListener listener)
+    {
+        ClientResponse response = new ClientResponse(agentResponse.getReason() == null
+                ? Statuses.from(agentResponse.getStatus())
+                : Statuses.from(agentResponse.getStatus(), agentResponse.getReason()), request);
+        for (HttpField header : agentResponse.getHeaders()) {
+            response.getHeaders().add(header.getName(), header.getValue());
+        }
+        // Closing the stream before the end aborts the response, so that
+        // its connection is not reused
+        response.setEntityStream(listener.getInputStream());
+        return response;
+    }
+
+    private Request newRequest(ClientRequest request)
+            throws IOException
+    {
+        // Agents' event streams send heartbeats, so the idle timeout only
+        // ends requests to agents that have stopped responding
+        Request agentRequest = httpClient.newRequest(request.getUri())
+                .method(request.getMethod())
+                .idleTimeout(readTimeoutMillis, MILLISECONDS);
+        if (request.hasEntity()) {
+            // Jersey sets the entity's headers as it writes it
+            ByteArrayOutputStream entity = new ByteArrayOutputStream();
+            request.setStreamProvider(contentLength -> entity);
+            request.writeEntity();
+            agentRequest.content(new BytesContentProvider(entity.toByteArray()));
+        }
+        request.getStringHeaders().forEach((name, values) ->
+                values.forEach(value -> agentRequest.header(name, value)));
+        return agentRequest;
+    }
+
+    /**
+     * Send the request without waiting for its response. Only waiting for
+     * a connection permit holds Jersey's thread for asynchronous requests.
+     * <p>
+     * The callback is called once the response's headers arrive, or the
+     * request fails. Jersey does not return the future returned here to
+     * the caller, so the request is also aborted when the future in its
+     * {@link ApiRequester#CANCELLATION_PROPERTY} property is cancelled.
+     *
+     * @return A future completed once the response has been read, or the
+     * request failed. Cancelling it aborts the request.
+     */
+    @Override
+    public Future<?> apply(ClientRequest request, AsyncConnectorCallback callback)
+    {
+        Request agentRequest;
+        try {
+            agentRequest = prepareRequest(request);
+        }
+        catch (ProcessingException e) {
+            callback.failure(e);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        agentRequest.onComplete(result -> sent.complete(null));
+        sent.whenComplete((result, throwable) -> {
+            if (throwable instanceof CancellationException) {
+                agentRequest.abort(throwable);
+            }
+        });
+        Object cancellation = request.getProperty(ApiRequester.CANCELLATION_PROPERTY);
+        if (cancellation instanceof CompletionStage) {
+            ((CompletionStage<?>) cancellation).whenComplete((result, throwable) -> {
+                if (throwable instanceof CancellationException) {
+                    sent.cancel(true);
+                }
+            });
+        }
+
+        agentRequest.send(new CallbackListener(request, callback));
+        return sent;
+    }
+
+    private static ProcessingException toProcessingException(Throwable failure)
+    {
+        if (failure instanceof TimeoutException) {
+            return new ProcessingException(new SocketTimeoutException("Read timed out"));
+        }
+        return new ProcessingException(failure);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "Jetty HttpClient";
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            httpClient.stop();
+        }
+        catch (Exception e) {
+            LOGGER.warn(e, "Could not stop HTTP client");
+        }
+        // Callbacks for the requests aborted by stopping the client still run
+        callbackExecutor.shutdown();
+    }
+
+    @Managed
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    @Managed
+    public int getMaxConnectionsPerAgent()
+    {
+        return httpClient.getMaxConnectionsPerDestination();
+    }
+
+    /**
+     * @return The number of requests being sent or having their responses
+     * read, other than event streams
+     */
+    @Managed
+    public int getActiveRequests()
+    {
+        return maxConnections - connectionPermits.availablePermits();
+    }
+
+    @Managed
+    public int getMaxStreams()
+    {
+        return maxStreams;
+    }
+
+    @Managed
+    public int getActiveStreams()
+    {
+        return maxStreams - streamPermits.availablePermits();
+    }
+
+    @Managed
+    public int getQueuedRequests()
+    {
+        return sumOverAgents(PoolingHttpDestination::getQueuedRequestCount);
+    }
+
+    @Managed
+    public int getConnections()
+    {
+        return sumOverAgents(agent -> agent.getConnectionPool().getConnectionCount());
+    }
+
+    @Managed
+    public int getActiveConnections()
+    {
+        return sumOverAgents(agent -> agent.getConnectionPool().getActiveConnectionCount());
+    }
+
+    @Managed
+    public int getIdleConnections()
+    {
+        return sumOverAgents(agent -> agent.getConnectionPool().getIdleConnectionCount());
+    }
+
+    private int sumOverAgents(ToIntFunction<PoolingHttpDestination<?>> count)
+    {
+        int sum = 0;
+        for (Destination destination : httpClient.getDestinations()) {
+            if (destination instanceof PoolingHttpDestination) {
+                sum += count.applyAsInt((PoolingHttpDestination<?>) destination);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Calls back with the response once its headers arrive, or with the
+     * failure if the request fails before that. The entity is read from the
+     * listener's stream as it arrives.
+     */
+    private final class CallbackListener
+            extends InputStreamResponseListener
+    {
+        private final ClientRequest request;
+        private final AsyncConnectorCallback callback;
+        private final AtomicBoolean calledBack = new AtomicBoolean();
+
+        private CallbackListener(ClientRequest request, AsyncConnectorCallback callback)
+        {
+            this.request = requireNonNull(request);
+            this.callback = requireNonNull(callback);
+        }
+
+        @Override
+        public void onHeaders(org.eclipse.jetty.client.api.Response response)
+        {
+            super.onHeaders(response);
+            if (calledBack.compareAndSet(false, true)) {
+                ClientResponse clientResponse = toClientResponse(request, response, this);
+                callbackExecutor.execute(() -> callback.response(clientResponse));
+            }
+        }
+
+        @Override
+        public void onComplete(Result result)
+        {
+            super.onComplete(result);
+            if (result.isFailed() && calledBack.compareAndSet(false, true)) {
+                ProcessingException failure = toProcessingException(result.getFailure());
+                callbackExecutor.execute(() -> callback.failure(failure));
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.controller;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+import io.airlift.units.MinDuration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public class ControllerConfig
+{
+    private int dispatchMaxConcurrentRequests = 256;
+    private Duration dispatchConnectTimeout = new Duration(10, SECONDS);
+    private Duration dispatchTimeout = new Duration(5, MINUTES);
+    private Duration dispatchHedgeDelay;
+    private int dispatchMaxConnections = 1024;
+    private int dispatchMaxConnectionsPerAgent = 32;
+    private int dispatchMaxStreams = 64;
+    private Duration dispatchIdleTimeout = new Duration(30, SECONDS);
+
+    @Config("dispatch.max-concurrent-requests")
+    @ConfigDescription("maximum number of agents a request is sent to at once")
+    public ControllerConfig setDispatchMaxConcurrentRequests(int dispatchMaxConcurrentRequests)
+    {
+        this.dispatchMaxConcurrentRequests = dispatchMaxConcurrentRequests;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getDispatchMaxConcurrentRequests()
+    {
+        return dispatchMaxConcurrentRequests;
+    }
+
+    @Config("dispatch.connect-timeout")
+    @ConfigDescription("time to wait to connect to an agent")
+    public ControllerConfig setDispatchConnectTimeout(Duration dispatchConnectTimeout)
+    {
+        this.dispatchConnectTimeout = dispatchConnectTimeout;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("1ms")
+    public Duration getDispatchConnectTimeout()
+    {
+        return dispatchConnectTimeout;
+    }
+
+    @Config("dispatch.timeout")
+    @ConfigDescription("time to wait for each agent's response to a request, or for more of a response being read")
+    public ControllerConfig setDispatchTimeout(Duration dispatchTimeout)
+    {
+        this.dispatchTimeout = dispatchTimeout;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("1ms")
+    public Duration getDispatchTimeout()
+    {
+        return dispatchTimeout;
+    }
+
+    @Config("dispatch.hedge-delay")
+    @ConfigDescription("time after which a GET request is sent again to an agent that has not responded; unset to not send again")
+    public ControllerConfig setDispatchHedgeDelay(Duration dispatchHedgeDelay)
+    {
+        this.dispatchHedgeDelay = dispatchHedgeDelay;
+        return this;
+    }
+
+    @MinDuration("1ms")
+    public Duration getDispatchHedgeDelay()
+    {
+        return dispatchHedgeDelay;
+    }
+
+    @Config("dispatch.max-connections")
+    @ConfigDescription("maximum number of requests to agents being sent or read at once")
+    public ControllerConfig setDispatchMaxConnections(int dispatchMaxConnections)
+    {
+        this.dispatchMaxConnections = dispatchMaxConnections;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getDispatchMaxConnections()
+    {
+        return dispatchMaxConnections;
+    }
+
+    @Config("dispatch.max-connections-per-agent")
+    @ConfigDescription("maximum number of connections open to each agent")
+    public ControllerConfig setDispatchMaxConnectionsPerAgent(int dispatchMaxConnectionsPerAgent)
+    {
+        this.dispatchMaxConnectionsPerAgent = dispatchMaxConnectionsPerAgent;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getDispatchMaxConnectionsPerAgent()
+    {
+        return dispatchMaxConnectionsPerAgent;
+    }
+
+    @Config("dispatch.max-streams")
+    @ConfigDescription("maximum number of event streams from agents being read at once")
+    public ControllerConfig setDispatchMaxStreams(int dispatchMaxStreams)
+    {
+        this.dispatchMaxStreams = dispatchMaxStreams;
+        return this;
+    }
+
+    @Min(value = 1)
+    public int getDispatchMaxStreams()
+    {
+        return dispatchMaxStreams;
+    }
+
+    @Config("dispatch.idle-timeout")
+    @ConfigDescription("time after which an idle connection to an agent is closed")
+    public ControllerConfig setDispatchIdleTimeout(Duration dispatchIdleTimeout)
+    {
+        this.dispatchIdleTimeout = dispatchIdleTimeout;
+        return this;
+    }
+
+    @NotNull
+    @MinDuration("1ms")
+    public Duration getDispatchIdleTimeout()
+    {
+        return dispatchIdleTimeout;
+    }
+}
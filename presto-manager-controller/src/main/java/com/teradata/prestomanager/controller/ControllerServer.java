@@ -13,7 +13,6 @@
  */
 package com.teradata.prestomanager.controller;
 
-import com.teradata.prestomanager.common.json.JsonReaderModule;
 import io.airlift.bootstrap.Bootstrap;
 import io.airlift.discovery.client.DiscoveryModule;
 import io.airlift.discovery.server.DiscoveryServerModule;
@@ -49,7 +48,6 @@ public class ControllerServer
                 new JaxrsModule(true), // requireExplicitBindings = true'
                 new JmxModule(),
                 new MBeanModule(),
-                new JsonReaderModule(false),
                 new ControllerServerModule()
         );
 
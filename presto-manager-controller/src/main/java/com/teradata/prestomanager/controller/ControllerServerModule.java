@@ -13,6 +13,7 @@
  */
 package com.teradata.prestomanager.controller;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
@@ -24,13 +25,20 @@ import com.teradata.prestomanager.controller.api.ControllerControlAPI;
 import com.teradata.prestomanager.controller.api.ControllerLogsAPI;
 import com.teradata.prestomanager.controller.api.ControllerPackageAPI;
 import io.airlift.configuration.AbstractConfigurationAwareModule;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.client.JerseyClient;
 import org.glassfish.jersey.client.JerseyClientBuilder;
 
 import javax.ws.rs.client.Client;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static io.airlift.configuration.ConfigBinder.configBinder;
 import static io.airlift.discovery.client.DiscoveryBinder.discoveryBinder;
 import static io.airlift.jaxrs.JaxrsBinder.jaxrsBinder;
+import static org.weakref.jmx.guice.ExportBinder.newExporter;
 
 public class ControllerServerModule
         extends AbstractConfigurationAwareModule
@@ -40,10 +48,16 @@ public class ControllerServerModule
     {
         binder.disableCircularProxies();
 
+        configBinder(binder).bindConfig(ControllerConfig.class);
         binder.bind(AgentMap.class).to(DiscoveryAgentMap.class).in(Scopes.SINGLETON);
         binder.bind(RequestDispatcher.class).in(Scopes.SINGLETON);
         binder.bind(Client.class).to(JerseyClient.class).in(Scopes.SINGLETON);
+        binder.bind(AgentConnector.class).in(Scopes.SINGLETON);
+        binder.bind(LogFanIn.class).in(Scopes.SINGLETON);
+        newExporter(binder).export(AgentConnector.class).withGeneratedName();
         binder.bind(ResponseWrapper.class);
+        binder.bind(ResponseCompressionFilter.class).in(Scopes.SINGLETON);
+        newExporter(binder).export(ResponseCompressionFilter.class).withGeneratedName();
 
         jaxrsBinder(binder).bind(ControllerConfigAPI.class);
         jaxrsBinder(binder).bind(ControllerConnectorAPI.class);
@@ -57,8 +71,27 @@ public class ControllerServerModule
 
     @Provides
     @Singleton
-    public JerseyClient jerseyClientProvider()
+    public JerseyClient jerseyClientProvider(ResponseCompressionFilter compressionFilter,
+            AgentConnector connector, ControllerConfig config)
+    {
+        // Jersey's asynchronous requests otherwise take a new thread each.
+        // The connector can not send more than this many requests at once,
+        // so further requests wait in the pool's queue instead.
+        ClientConfig clientConfig = new ClientConfig()
+                .connectorProvider((client, configuration) -> connector)
+                .property(ClientProperties.ASYNC_THREADPOOL_SIZE, config.getDispatchMaxConnections());
+        return JerseyClientBuilder.createClient(clientConfig).register(compressionFilter);
+    }
+
+    /**
+     * Stopped by {@link RequestDispatcher}, its only user
+     */
+    @Provides
+    @Singleton
+    @ForRequestHedging
+    public ScheduledExecutorService hedgeExecutorProvider()
     {
-        return JerseyClientBuilder.createClient();
+        return Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("request-hedge-%s").setDaemon(true).build());
     }
 }
@@ -0,0 +1,325 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.teradata.prestomanager.common.ServerSentEvents;
+import io.airlift.log.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.teradata.prestomanager.common.ServerSentEvents.writeComment;
+import static com.teradata.prestomanager.common.ServerSentEvents.writeEvent;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.ws.rs.core.Response.Status.OK;
+
+/**
+ * Combines the streams of log entries sent by agents following a log into
+ * a single stream of server-sent events
+ * <p>
+ * Each agent's stream is read by its own thread, and its entries are sent
+ * as they arrive, as events whose data is a JSON object with the entry
+ * and the ID of its node. If an agent's stream can not be read or ends, an
+ * "error" event is sent with the ID of the node and a message. The stream
+ * ends once every agent's stream has ended, or when the client
+ * disconnects.
+ * <p>
+ * Entries wait in a bounded queue to be sent, so an agent is not read
+ * faster than the client reads the combined stream.
+ * <p>
+ * At most {@code dispatch.max-streams} agents' streams are read at once,
+ * as many as the controller opens. An "error" event is sent for each
+ * agent whose stream can not get a thread.
+ */
+@ThreadSafe
+public final class LogFanIn
+{
+    private static final Logger LOGGER = Logger.get(LogFanIn.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    private static final long OFFER_MILLIS = 1_000;
+
+    private final ExecutorService readers;
+
+    @Inject
+    public LogFanIn(ControllerConfig config)
+    {
+        readers = new ThreadPoolExecutor(0, config.getDispatchMaxStreams(),
+                60, SECONDS, new SynchronousQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("log-follow-%s").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        readers.shutdownNow();
+    }
+
+    /**
+     * Combine the agents' responses to a request to follow a log
+     *
+     * @param responses The agents' responses, by node ID
+     */
+    public Response followLogs(Map<String, Future<Response>> responses)
+    {
+        StreamingOutput output = stream -> new FanIn(responses).run(stream);
+        // Not compressed, as with the agents' event streams
+        return Response.ok(output, MediaType.SERVER_SENT_EVENTS)
+                .header(HttpHeaders.CONTENT_ENCODING, "identity")
+                .build();
+    }
+
+    private final class FanIn
+    {
+        private final Map<String, Future<Response>> responses;
+        private final BlockingQueue<NodeEvent> events = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile boolean closed;
+
+        private FanIn(Map<String, Future<Response>> responses)
+        {
+            this.responses = requireNonNull(responses);
+        }
+
+        void run(OutputStream stream)
+                throws IOException
+        {
+            List<NodeEvent> rejected = new ArrayList<>();
+            for (Map.Entry<String, Future<Response>> response : responses.entrySet()) {
+                try {
+                    readers.execute(() -> read(response.getKey(), response.getValue()));
+                }
+                catch (RejectedExecutionException e) {
+                    LOGGER.warn("Could not follow log of node %s: too many logs are being followed", response.getKey());
+                    close(response.getValue());
+                    rejected.add(new NodeEvent(response.getKey(), null, "Too many logs are being followed"));
+                }
+            }
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(stream, UTF_8));
+            int running = responses.size() - rejected.size();
+            try {
+                writeComment(writer, "following " + running + " nodes");
+                for (NodeEvent event : rejected) {
+                    writeEvent(writer, "error", toJson("message", event));
+                }
+                writer.flush();
+                while (running > 0) {
+                    NodeEvent event = events.poll(HEARTBEAT_MILLIS, MILLISECONDS);
+                    if (event == null) {
+                        writeComment(writer, "heartbeat");
+                    }
+                    else if (event.entry != null) {
+                        writeEvent(writer, toJson("entry", event));
+                    }
+                    else {
+                        writeEvent(writer, "error", toJson("message", event));
+                        running--;
+                    }
+                    if (events.isEmpty()) {
+                        writer.flush();
+                    }
+                }
+                writer.flush();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                closed = true;
+                responses.values().forEach(LogFanIn::close);
+            }
+        }
+
+        /**
+         * Read the events of one agent's stream into the queue, ending with
+         * an event with an error message
+         */
+        private void read(String nodeId, Future<Response> future)
+        {
+            String message;
+            try {
+                Response response = future.get();
+                if (closed) {
+                    // The stream may have been closed before the response arrived
+                    response.close();
+                    return;
+                }
+                try {
+                    message = response.getStatus() == OK.getStatusCode()
+                            ? readEntries(nodeId, response)
+                            : response.getStatus() + " " + response.getStatusInfo().getReasonPhrase();
+                }
+                finally {
+                    response.close();
+                }
+            }
+            catch (ExecutionException e) {
+                LOGGER.warn(e.getCause(), "Could not follow log of node %s", nodeId);
+                message = "Could not connect to node";
+            }
+            catch (InterruptedException | CancellationException e) {
+                // The combined stream has been closed
+                return;
+            }
+            catch (IOException | RuntimeException e) {
+                if (closed) {
+                    return;
+                }
+                LOGGER.warn(e, "Could not read log of node %s", nodeId);
+                message = "Could not read log entries: " + e.getMessage();
+            }
+            if (message != null) {
+                offer(new NodeEvent(nodeId, null, message));
+            }
+        }
+
+        /**
+         * @return A message saying why the stream ended, or null if the
+         * combined stream has been closed
+         */
+        private String readEntries(String nodeId, Response response)
+                throws IOException
+        {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    response.readEntity(InputStream.class), UTF_8))) {
+                ServerSentEvents.Event event;
+                while ((event = ServerSentEvents.readEvent(reader)) != null) {
+                    if (!event.getType().equals("message")) {
+                        continue;
+                    }
+                    if (!offer(new NodeEvent(nodeId, parseString(event.getData()), null))) {
+                        return null;
+                    }
+                }
+            }
+            return "Log stream ended";
+        }
+
+        /**
+         * Wait for space in the queue, unless the combined stream is closed
+         *
+         * @return Whether the event was added
+         */
+        private boolean offer(NodeEvent event)
+        {
+            try {
+                while (!closed) {
+                    if (events.offer(event, OFFER_MILLIS, MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Cancel a request to an agent, or close its response if it has
+     * arrived, which also stops the thread reading it
+     */
+    private static void close(Future<Response> future)
+    {
+        if (future.cancel(true)) {
+            return;
+        }
+        try {
+            future.get().close();
+        }
+        catch (ExecutionException | CancellationException e) {
+            // There is no response to close
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String parseString(String json)
+            throws IOException
+    {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.VALUE_STRING) {
+                throw new IOException("Log entry is not a string");
+            }
+            return parser.getText();
+        }
+    }
+
+    private static String toJson(String field, NodeEvent event)
+            throws IOException
+    {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeStringField("nodeId", event.nodeId);
+            generator.writeStringField(field, event.entry != null ? event.entry : event.message);
+            generator.writeEndObject();
+        }
+        return json.toString();
+    }
+
+    private static final class NodeEvent
+    {
+        private final String nodeId;
+        private final String entry;
+        private final String message;
+
+        private NodeEvent(String nodeId, String entry, String message)
+        {
+            this.nodeId = nodeId;
+            this.entry = entry;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.Ordering;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static com.teradata.prestomanager.common.SimpleResponses.serverError;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static javax.ws.rs.core.Response.Status.OK;
+
+/**
+ * Merges the counts of log entries returned by agents
+ * <p>
+ * Each agent returns a JSON array of rows, each with the values it counted
+ * by and a "count". Rows with the same values are added together, and the
+ * result is a JSON object with the rows in order of their values, followed
+ * by the errors from any agents that could not be read:
+ * <pre>
+ * {"counts": [{"time": "...", "level": "...", "count": 3}, ...],
+ *  "errors": {"nodeId": "message", ...}}
+ * </pre>
+ */
+public final class LogHistograms
+{
+    private static final Logger LOGGER = Logger.get(LogHistograms.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+    private static final String COUNT_FIELD = "count";
+
+    private LogHistograms() {}
+
+    /**
+     * Merge the counts in the agents' responses to a request for a
+     * histogram of a log
+     *
+     * @param responses The agents' responses, by node ID
+     * @param timeout How long to wait for the agents to respond; those
+     * that have not are reported as errors
+     */
+    public static Response mergeHistograms(Map<String, Future<Response>> responses, Duration timeout)
+    {
+        long deadline = System.nanoTime() + timeout.roundTo(NANOSECONDS);
+        Histogram histogram = new Histogram();
+        Map<String, String> errors = new TreeMap<>();
+        for (Map.Entry<String, Future<Response>> e : new TreeMap<>(responses).entrySet()) {
+            String nodeId = e.getKey();
+            Response response;
+            try {
+                response = e.getValue().get(Math.max(deadline - System.nanoTime(), 0), NANOSECONDS);
+            }
+            catch (TimeoutException ex) {
+                e.getValue().cancel(true);
+                LOGGER.warn("Node %s did not respond within %s", nodeId, timeout);
+                errors.put(nodeId, "Node did not respond within " + timeout);
+                continue;
+            }
+            catch (ExecutionException ex) {
+                LOGGER.warn(ex.getCause(), "Could not get log counts from node %s", nodeId);
+                errors.put(nodeId, "Could not connect to node");
+                continue;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                responses.values().forEach(future -> future.cancel(true));
+                return serverError("Interrupted while waiting for agents");
+            }
+            try {
+                if (response.getStatus() != OK.getStatusCode()) {
+                    errors.put(nodeId, response.getStatus() + " "
+                            + response.getStatusInfo().getReasonPhrase());
+                    continue;
+                }
+                // A node's counts are only added once they have all been read
+                Histogram nodeHistogram = new Histogram();
+                nodeHistogram.read(response.readEntity(InputStream.class));
+                histogram.addAll(nodeHistogram);
+            }
+            catch (IOException | ProcessingException ex) {
+                LOGGER.warn(ex, "Could not read log counts from node %s", nodeId);
+                errors.put(nodeId, "Could not read log counts: " + ex.getMessage());
+            }
+            finally {
+                response.close();
+            }
+        }
+
+        StreamingOutput output = stream -> {
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(stream)) {
+                generator.writeStartObject();
+                generator.writeFieldName("counts");
+                histogram.write(generator);
+                generator.writeObjectFieldStart("errors");
+                for (Map.Entry<String, String> error : errors.entrySet()) {
+                    generator.writeStringField(error.getKey(), error.getValue());
+                }
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+        };
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Counts by the values of the other fields of the rows, which are
+     * strings or null
+     */
+    private static final class Histogram
+    {
+        private static final Ordering<Iterable<String>> KEY_ORDER =
+                Ordering.<String>natural().nullsFirst().lexicographical();
+
+        private List<String> fields;
+        private final Map<List<String>, long[]> counts = new TreeMap<>(KEY_ORDER);
+
+        void read(InputStream input)
+                throws IOException
+        {
+            try (JsonParser parser = JSON_FACTORY.createParser(input)) {
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    throw new IOException("Response is not a JSON array");
+                }
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readRow(parser);
+                }
+                if (parser.currentToken() != JsonToken.END_ARRAY) {
+                    throw new IOException("Count is not a JSON object");
+                }
+            }
+        }
+
+        private void readRow(JsonParser parser)
+                throws IOException
+        {
+            List<String> rowFields = new ArrayList<>();
+            List<String> key = new ArrayList<>();
+            Long count = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals(COUNT_FIELD)) {
+                    if (value != JsonToken.VALUE_NUMBER_INT) {
+                        throw new IOException("Count is not an integer");
+                    }
+                    count = parser.getLongValue();
+                }
+                else if (value == JsonToken.VALUE_STRING || value == JsonToken.VALUE_NULL) {
+                    rowFields.add(field);
+                    key.add(value == JsonToken.VALUE_NULL ? null : parser.getText());
+                }
+                else {
+                    throw new IOException("Value of " + field + " is not a string");
+                }
+            }
+            if (count == null) {
+                throw new IOException("Row has no count");
+            }
+            if (fields == null) {
+                fields = rowFields;
+            }
+            else if (!fields.equals(rowFields)) {
+                throw new IOException("Rows do not all have the same fields");
+            }
+            add(key, count);
+        }
+
+        void addAll(Histogram other)
+                throws IOException
+        {
+            if (other.fields == null) {
+                return;
+            }
+            if (fields == null) {
+                fields = other.fields;
+            }
+            else if (!fields.equals(other.fields)) {
+                throw new IOException("Counts are by different fields than other nodes' counts");
+            }
+            other.counts.forEach((key, count) -> add(key, count[0]));
+        }
+
+        private void add(List<String> key, long count)
+        {
+            counts.computeIfAbsent(key, k -> new long[1])[0] += count;
+        }
+
+        void write(JsonGenerator generator)
+                throws IOException
+        {
+            generator.writeStartArray();
+            for (Map.Entry<List<String>, long[]> row : counts.entrySet()) {
+                generator.writeStartObject();
+                for (int i = 0; i < fields.size(); i++) {
+                    generator.writeStringField(fields.get(i), row.getKey().get(i));
+                }
+                generator.writeNumberField(COUNT_FIELD, row.getValue()[0]);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+}
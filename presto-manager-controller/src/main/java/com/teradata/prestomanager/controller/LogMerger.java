@@ -0,0 +1,451 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.teradata.prestomanager.common.LogCursor;
+import com.teradata.prestomanager.common.LogFormat;
+import com.teradata.prestomanager.common.LogTimestamps;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static com.teradata.prestomanager.common.LogFormat.TIMESTAMP_FIELD;
+import static com.teradata.prestomanager.common.SimpleResponses.serverError;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static javax.ws.rs.core.Response.Status.OK;
+
+/**
+ * Merges the log entries returned by agents into a single stream, in
+ * order of the times of the entries
+ * <p>
+ * The responses of the agents are read as the merged stream is written,
+ * one entry ahead from each agent, so the memory used does not depend on
+ * the number of entries. The merged stream is a JSON object with the
+ * entries, each tagged with the ID of its node, followed by the errors
+ * from any agents that could not be read:
+ * <pre>
+ * {"entries": [{"nodeId": "...", "entry": "..."}, ...],
+ *  "errors": {"nodeId": "message", ...}}
+ * </pre>
+ * When merging pages of logs, the object also has the cursor each agent
+ * returned after its page, as {@code "cursors": {"nodeId": "cursor", ...}}.
+ * <p>
+ * In {@link LogFormat#NDJSON}, the agents' records are read by their
+ * timestamps and passed through with the ID of their node added, one per
+ * line, followed by a line for each error and cursor:
+ * <pre>
+ * {"nodeId": "...", "timestamp": ..., ...}
+ * {"nodeId": "...", "error": "message"}
+ * {"nodeId": "...", "cursor": "cursor"}
+ * </pre>
+ */
+public final class LogMerger
+{
+    private static final Logger LOGGER = Logger.get(LogMerger.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+    private LogMerger() {}
+
+    /**
+     * Merge the entries of the agents' responses to a request for a log
+     * <p>
+     * Each agent's entries are assumed to be in time order, as they are
+     * in its log. Entries with the same time are ordered by node ID, and
+     * an entry without a readable time is kept after the entry before it.
+     *
+     * @param responses The agents' responses, by node ID
+     * @param capacity The maximum number of entries to return
+     * @param keepFirst Whether to keep the first entries instead of the last
+     * when there are more than {@code capacity}
+     * @param format The format the agents were asked for, which is also
+     * the format of the merged entries
+     * @param timeout How long to wait for the agents to respond; those
+     * that have not are reported as errors
+     */
+    public static Response mergeLogs(Map<String, Future<Response>> responses,
+            int capacity, boolean keepFirst, LogFormat format, Duration timeout)
+    {
+        return merge(responses, capacity, keepFirst, format, null, timeout);
+    }
+
+    /**
+     * Merge the entries of the agents' responses to a request for pages of
+     * a log, as for {@link #mergeLogs}
+     * <p>
+     * All of the entries are kept, so that the cursors returned by the
+     * agents are after the last entries of each agent.
+     */
+    public static Response mergeLogPages(Map<String, Future<Response>> responses,
+            LogFormat format, Duration timeout)
+    {
+        return merge(responses, Integer.MAX_VALUE, true, format, new TreeMap<>(), timeout);
+    }
+
+    /**
+     * @param cursors The map to put the agents' cursors in, or null to not
+     * return cursors
+     */
+    private static Response merge(Map<String, Future<Response>> responses,
+            int capacity, boolean keepFirst, LogFormat format, Map<String, String> cursors,
+            Duration timeout)
+    {
+        requireNonNull(format);
+        long deadline = System.nanoTime() + timeout.roundTo(NANOSECONDS);
+        ConcurrentMap<String, String> errors = new ConcurrentSkipListMap<>();
+        List<NodeEntries> sources = new ArrayList<>();
+        for (Map.Entry<String, Future<Response>> e : new TreeMap<>(responses).entrySet()) {
+            String nodeId = e.getKey();
+            Response response;
+            try {
+                response = e.getValue().get(Math.max(deadline - System.nanoTime(), 0), NANOSECONDS);
+            }
+            catch (TimeoutException ex) {
+                e.getValue().cancel(true);
+                LOGGER.warn("Node %s did not respond within %s", nodeId, timeout);
+                errors.put(nodeId, "Node did not respond within " + timeout);
+                continue;
+            }
+            catch (ExecutionException ex) {
+                LOGGER.warn(ex.getCause(), "Could not get log from node %s", nodeId);
+                errors.put(nodeId, "Could not connect to node");
+                continue;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                sources.forEach(NodeEntries::close);
+                responses.values().forEach(future -> future.cancel(true));
+                return serverError("Interrupted while waiting for agents");
+            }
+            if (response.getStatus() != OK.getStatusCode()) {
+                errors.put(nodeId, readError(response));
+                response.close();
+                continue;
+            }
+            if (cursors != null && response.getHeaderString(LogCursor.HEADER) != null) {
+                cursors.put(nodeId, response.getHeaderString(LogCursor.HEADER));
+            }
+            sources.add(new NodeEntries(nodeId, sources.size(), response, format, errors));
+        }
+
+        StreamingOutput output = stream -> {
+            try {
+                Iterator<NodeEntry> merged = Iterators.mergeSorted(sources,
+                        Comparator.comparingLong((NodeEntry entry) -> entry.millis)
+                                .thenComparingInt(entry -> entry.nodeIndex));
+                Iterator<NodeEntry> entries = keepFirst ? Iterators.limit(merged, capacity) : lastEntries(merged, capacity);
+                if (format == LogFormat.NDJSON) {
+                    writeRecords(entries, errors, cursors, stream);
+                }
+                else {
+                    writeEntries(entries, errors, cursors, stream);
+                }
+            }
+            finally {
+                sources.forEach(NodeEntries::close);
+            }
+        };
+        return Response.ok(output, format.getMediaType()).build();
+    }
+
+    private static String readError(Response response)
+    {
+        String message = response.getStatus() + " " + response.getStatusInfo().getReasonPhrase();
+        try {
+            String body = response.readEntity(String.class);
+            return body == null || body.isEmpty() ? message : message + ": " + body;
+        }
+        catch (ProcessingException | IllegalStateException e) {
+            return message;
+        }
+    }
+
+    private static Iterator<NodeEntry> lastEntries(Iterator<NodeEntry> entries, int capacity)
+    {
+        if (capacity == Integer.MAX_VALUE) {
+            return entries;
+        }
+        if (capacity <= 0) {
+            return Collections.emptyIterator();
+        }
+        Deque<NodeEntry> kept = new ArrayDeque<>();
+        while (entries.hasNext()) {
+            if (kept.size() == capacity) {
+                kept.removeFirst();
+            }
+            kept.addLast(entries.next());
+        }
+        return kept.iterator();
+    }
+
+    private static void writeEntries(Iterator<NodeEntry> entries,
+            Map<String, String> errors, Map<String, String> cursors, OutputStream output)
+            throws IOException
+    {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("entries");
+            while (entries.hasNext()) {
+                NodeEntry entry = entries.next();
+                generator.writeStartObject();
+                generator.writeStringField("nodeId", entry.nodeId);
+                generator.writeStringField("entry", entry.entry);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeObjectFieldStart("errors");
+            for (Map.Entry<String, String> error : errors.entrySet()) {
+                generator.writeStringField(error.getKey(), error.getValue());
+            }
+            generator.writeEndObject();
+            if (cursors != null) {
+                generator.writeObjectFieldStart("cursors");
+                for (Map.Entry<String, String> cursor : cursors.entrySet()) {
+                    // Entries after an error were not returned, so its cursor would skip them
+                    if (!errors.containsKey(cursor.getKey())) {
+                        generator.writeStringField(cursor.getKey(), cursor.getValue());
+                    }
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writeRecords(Iterator<NodeEntry> records,
+            Map<String, String> errors, Map<String, String> cursors, OutputStream output)
+            throws IOException
+    {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+            generator.setRootValueSeparator(null);
+            JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+            while (records.hasNext()) {
+                NodeEntry record = records.next();
+                // The record is passed through as it is, after the node ID
+                String fields = record.entry.substring(1);
+                char[] nodeId = encoder.quoteAsString(record.nodeId);
+                generator.writeRaw("{\"nodeId\":\"");
+                generator.writeRaw(nodeId, 0, nodeId.length);
+                generator.writeRaw(fields.startsWith("}") ? "\"" : "\",");
+                generator.writeRaw(fields);
+                generator.writeRaw('\n');
+            }
+            for (Map.Entry<String, String> error : errors.entrySet()) {
+                writeRecord(generator, error.getKey(), "error", error.getValue());
+            }
+            if (cursors != null) {
+                for (Map.Entry<String, String> cursor : cursors.entrySet()) {
+                    if (!errors.containsKey(cursor.getKey())) {
+                        writeRecord(generator, cursor.getKey(), "cursor", cursor.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeRecord(JsonGenerator generator, String nodeId, String field, String value)
+            throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("nodeId", nodeId);
+        generator.writeStringField(field, value);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    /**
+     * Get the time of a log entry from the date at its start
+     *
+     * @return Milliseconds since the epoch, or {@link LogTimestamps#UNPARSED}
+     */
+    private static long parseTime(String entry)
+    {
+        int end = entry.indexOf('\t');
+        return end < 0 ? LogTimestamps.UNPARSED : LogTimestamps.parseEpochMillis(entry.subSequence(0, end));
+    }
+
+    /**
+     * Get the time of a log record from its timestamp, reading only as far
+     * as that field
+     *
+     * @return Milliseconds since the epoch, or {@link LogTimestamps#UNPARSED}
+     * @throws IOException if the record is not a JSON object
+     */
+    private static long parseTimestamp(String record)
+            throws IOException
+    {
+        if (!record.startsWith("{")) {
+            throw new IOException("Log record is not a JSON object");
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(record)) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                boolean timestamp = parser.getCurrentName().equals(TIMESTAMP_FIELD);
+                JsonToken value = parser.nextToken();
+                if (timestamp) {
+                    return value == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : LogTimestamps.UNPARSED;
+                }
+                parser.skipChildren();
+            }
+        }
+        return LogTimestamps.UNPARSED;
+    }
+
+    private static final class NodeEntry
+    {
+        private final String nodeId;
+        private final int nodeIndex;
+        private final String entry;
+        private final long millis;
+
+        private NodeEntry(String nodeId, int nodeIndex, String entry, long millis)
+        {
+            this.nodeId = nodeId;
+            this.nodeIndex = nodeIndex;
+            this.entry = entry;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * The entries in one agent's response, parsed from the JSON array of
+     * strings as they are needed, or the records in the response, one per
+     * line, read as far as their timestamps
+     * <p>
+     * An error reading the response ends the entries, and is recorded in
+     * the errors rather than thrown, so that the other nodes' entries can
+     * still be returned.
+     */
+    private static final class NodeEntries
+            extends AbstractIterator<NodeEntry>
+            implements Closeable
+    {
+        private final String nodeId;
+        private final int nodeIndex;
+        private final Response response;
+        private final LogFormat format;
+        private final Map<String, String> errors;
+        private JsonParser parser;
+        private BufferedReader reader;
+        private long lastMillis = Long.MIN_VALUE;
+
+        private NodeEntries(String nodeId, int nodeIndex,
+                Response response, LogFormat format, Map<String, String> errors)
+        {
+            this.nodeId = requireNonNull(nodeId);
+            this.nodeIndex = nodeIndex;
+            this.response = requireNonNull(response);
+            this.format = requireNonNull(format);
+            this.errors = requireNonNull(errors);
+        }
+
+        @Override
+        protected NodeEntry computeNext()
+        {
+            try {
+                if (format == LogFormat.NDJSON) {
+                    return readRecord();
+                }
+                if (parser == null) {
+                    parser = JSON_FACTORY.createParser(response.readEntity(InputStream.class));
+                    if (parser.nextToken() != JsonToken.START_ARRAY) {
+                        throw new IOException("Response is not a JSON array");
+                    }
+                }
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.END_ARRAY) {
+                    close();
+                    return endOfData();
+                }
+                if (token != JsonToken.VALUE_STRING) {
+                    throw new IOException("Log entry is not a string");
+                }
+                String entry = parser.getText();
+                long millis = parseTime(entry);
+                if (millis != LogTimestamps.UNPARSED) {
+                    lastMillis = millis;
+                }
+                return new NodeEntry(nodeId, nodeIndex, entry, lastMillis);
+            }
+            catch (IOException | ProcessingException e) {
+                LOGGER.warn(e, "Could not read log from node %s", nodeId);
+                errors.put(nodeId, "Could not read log entries: " + e.getMessage());
+                close();
+                return endOfData();
+            }
+        }
+
+        private NodeEntry readRecord()
+                throws IOException
+        {
+            if (reader == null) {
+                reader = new BufferedReader(new InputStreamReader(response.readEntity(InputStream.class), UTF_8));
+            }
+            String record;
+            do {
+                record = reader.readLine();
+                if (record == null) {
+                    close();
+                    return endOfData();
+                }
+            }
+            while (record.isEmpty());
+            long millis = parseTimestamp(record);
+            if (millis != LogTimestamps.UNPARSED) {
+                lastMillis = millis;
+            }
+            return new NodeEntry(nodeId, nodeIndex, record, lastMillis);
+        }
+
+        @Override
+        public void close()
+        {
+            response.close();
+        }
+    }
+}
@@ -13,24 +13,57 @@
  */
 package com.teradata.prestomanager.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import com.teradata.prestomanager.common.ApiRequester;
 import com.teradata.prestomanager.controller.ResponseWrapper.WrappedResponse;
 import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+import org.eclipse.jetty.http.HttpMethod;
 
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import javax.annotation.concurrent.ThreadSafe;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.AbstractMap.SimpleEntry;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static com.teradata.prestomanager.common.ExtendedStatus.MULTI_STATUS;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static javax.ws.rs.core.Response.Status.BAD_GATEWAY;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.GATEWAY_TIMEOUT;
 import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
 
 @ThreadSafe
@@ -39,24 +72,307 @@ public class RequestDispatcher
     private static final Logger LOGGER = Logger.get(RequestDispatcher.class);
 
     private final ResponseWrapper wrapper;
+    private final ObjectMapper objectMapper;
     private AgentMap agentMap;
+    private final int maxConcurrentRequests;
+    private final Duration timeout;
+    @Nullable
+    private final Duration hedgeDelay;
+    private final ScheduledExecutorService hedgeExecutor;
 
     @Inject
-    public RequestDispatcher(ResponseWrapper wrapper,
-            AgentMap agentMap)
+    public RequestDispatcher(ResponseWrapper wrapper, ObjectMapper objectMapper,
+            AgentMap agentMap, ControllerConfig config,
+            @ForRequestHedging ScheduledExecutorService hedgeExecutor)
     {
         this.wrapper = requireNonNull(wrapper);
+        this.objectMapper = requireNonNull(objectMapper);
         this.agentMap = requireNonNull(agentMap);
+        this.maxConcurrentRequests = config.getDispatchMaxConcurrentRequests();
+        this.timeout = requireNonNull(config.getDispatchTimeout());
+        this.hedgeDelay = config.getDispatchHedgeDelay();
+        this.hedgeExecutor = requireNonNull(hedgeExecutor);
+    }
+
+    @PreDestroy
+    public void stop()
+    {
+        hedgeExecutor.shutdownNow();
+    }
+
+    /**
+     * @return How long to wait for agents to respond
+     */
+    public Duration getTimeout()
+    {
+        return timeout;
     }
 
     public Response forwardRequest(
             String scope, ApiRequester apiRequester, Collection<String> nodeId)
+    {
+        return forwardRequest(scope, id -> apiRequester, nodeId);
+    }
+
+    /**
+     * Forward a request which may differ for each agent
+     *
+     * @param apiRequesters Gets the request to send to an agent from its ID
+     */
+    public Response forwardRequest(String scope,
+            Function<String, ApiRequester> apiRequesters, Collection<String> nodeId)
+    {
+        Map<String, CompletableFuture<Response>> sent;
+        try {
+            sent = send(getUris(scope, nodeId), apiRequesters);
+        }
+        catch (WebApplicationException e) {
+            return e.getResponse();
+        }
+
+        // Each response is read on the thread it arrived on, and written
+        // to the client as soon as it has been read
+        long deadline = System.nanoTime() + timeout.roundTo(NANOSECONDS);
+        BlockingQueue<Map.Entry<String, WrappedResponse>> results = new LinkedBlockingQueue<>();
+        sent.forEach((id, response) -> response.whenComplete((result, throwable) -> {
+            WrappedResponse wrapped = throwable == null
+                    ? wrapResponse(result)
+                    : wrapFailure(id, throwable);
+            if (wrapped != null) {
+                results.add(new SimpleImmutableEntry<>(id, wrapped));
+            }
+        }));
+
+        StreamingOutput output = stream -> writeResponses(sent, results, deadline, stream);
+        return Response.status(MULTI_STATUS)
+                .type(MediaType.APPLICATION_JSON)
+                .entity(output)
+                .build();
+    }
+
+    /**
+     * Send a request to each of the selected agents, without waiting for
+     * their responses. The caller must close the responses.
+     *
+     * @return The responses by node ID
+     * @throws WebApplicationException with the response to return to the
+     * client if the agents to send the request to can not be selected
+     */
+    public Map<String, Future<Response>> sendRequest(
+            String scope, ApiRequester apiRequester, Collection<String> nodeId)
+    {
+        return sendRequest(scope, id -> apiRequester, nodeId);
+    }
+
+    /**
+     * Send a request which may differ for each agent, as for
+     * {@link #sendRequest(String, ApiRequester, Collection)}
+     *
+     * @param apiRequesters Gets the request to send to an agent from its ID
+     */
+    public Map<String, Future<Response>> sendRequest(String scope,
+            Function<String, ApiRequester> apiRequesters, Collection<String> nodeId)
+    {
+        return ImmutableMap.copyOf(send(getUris(scope, nodeId), apiRequesters));
+    }
+
+    /**
+     * Send a request to each of the agents, with at most
+     * {@code dispatch.max-concurrent-requests} of them waiting for a
+     * response at once. The rest are sent as responses arrive, so they
+     * take no thread of the client's asynchronous pool while they wait.
+     * Cancelling a response that has not been sent keeps it from being
+     * sent.
+     */
+    private Map<String, CompletableFuture<Response>> send(Map<String, URI> uriMap,
+            Function<String, ApiRequester> apiRequesters)
+    {
+        ImmutableMap.Builder<String, CompletableFuture<Response>> responses = ImmutableMap.builder();
+        Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        for (Map.Entry<String, URI> e : uriMap.entrySet()) {
+            ApiRequester apiRequester = apiRequesters.apply(e.getKey());
+            CompletableFuture<Response> response = new CompletableFuture<>();
+            responses.put(e.getKey(), response);
+            pending.add(() -> {
+                if (response.isDone()) {
+                    sendNext(pending);
+                    return;
+                }
+                CompletableFuture<Response> sent;
+                try {
+                    sent = sendHedged(apiRequester, e.getValue());
+                }
+                catch (RuntimeException ex) {
+                    response.completeExceptionally(ex);
+                    sendNext(pending);
+                    return;
+                }
+                response.whenComplete((result, throwable) -> {
+                    if (response.isCancelled()) {
+                        sent.cancel(true);
+                    }
+                });
+                sent.whenComplete((result, throwable) -> {
+                    if (throwable != null) {
+                        response.completeExceptionally(throwable);
+                    }
+                    else if (!response.complete(result)) {
+                        result.close();
+                    }
+                    sendNext(pending);
+                });
+            });
+        }
+        for (int i = 0; i < maxConcurrentRequests; i++) {
+            sendNext(pending);
+        }
+        return responses.build();
+    }
+
+    /**
+     * Send a request, and if it is a GET request and {@code
+     * dispatch.hedge-delay} is set, send it again if there is no response
+     * after that delay. The first successful response is used, and the
+     * other request is aborted. Requests are not sent again once the
+     * dispatcher has stopped.
+     */
+    private CompletableFuture<Response> sendHedged(ApiRequester apiRequester, URI uri)
+    {
+        CompletableFuture<Response> first = apiRequester.sendAsync(uri);
+        if (hedgeDelay == null || apiRequester.getMethod() != HttpMethod.GET) {
+            return first;
+        }
+
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger(1);
+        AtomicReference<CompletableFuture<Response>> second = new AtomicReference<>();
+        BiConsumer<Response, Throwable> complete = (result, throwable) -> {
+            if (throwable == null) {
+                if (!response.complete(result)) {
+                    result.close();
+                }
+            }
+            else if (running.decrementAndGet() == 0) {
+                response.completeExceptionally(throwable);
+            }
+        };
+        ScheduledFuture<?> hedge;
+        try {
+            hedge = hedgeExecutor.schedule(() -> {
+                if (!response.isDone()) {
+                    running.incrementAndGet();
+                    try {
+                        second.set(apiRequester.sendAsync(uri));
+                        second.get().whenComplete(complete);
+                    }
+                    catch (RuntimeException e) {
+                        complete.accept(null, e);
+                    }
+                }
+            }, hedgeDelay.toMillis(), MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            return first;
+        }
+        first.whenComplete(complete);
+        response.whenComplete((result, throwable) -> {
+            hedge.cancel(false);
+            first.cancel(true);
+            if (second.get() != null) {
+                second.get().cancel(true);
+            }
+        });
+        return response;
+    }
+
+    private static void sendNext(Queue<Runnable> pending)
+    {
+        Runnable next = pending.poll();
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * Write the agents' responses as a JSON object by node ID, in the order
+     * they arrive. Agents that have not responded by the deadline are
+     * written as timed out, so the other responses are returned on time,
+     * and their requests are aborted to release their connections.
+     */
+    private void writeResponses(Map<String, CompletableFuture<Response>> sent,
+            BlockingQueue<Map.Entry<String, WrappedResponse>> results, long deadline,
+            OutputStream stream)
+            throws IOException
+    {
+        Set<String> remaining = new LinkedHashSet<>(sent.keySet());
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(stream)) {
+            // An incomplete object must not look complete to the client
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            generator.writeStartObject();
+            while (!remaining.isEmpty()) {
+                Map.Entry<String, WrappedResponse> result = results.poll(
+                        Math.max(deadline - System.nanoTime(), 0), NANOSECONDS);
+                if (result == null) {
+                    break;
+                }
+                if (remaining.remove(result.getKey())) {
+                    generator.writeObjectField(result.getKey(), result.getValue());
+                    generator.flush();
+                }
+            }
+            for (String nodeId : remaining) {
+                sent.get(nodeId).cancel(true);
+                LOGGER.warn("Node %s did not respond within %s", nodeId, timeout);
+                generator.writeObjectField(nodeId,
+                        wrapper.wrapError(GATEWAY_TIMEOUT, "Node did not respond within " + timeout));
+            }
+            generator.writeEndObject();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for agents");
+        }
+        finally {
+            sent.values().forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * @return The error to report for an agent, or null if its request
+     * was cancelled
+     */
+    @Nullable
+    private WrappedResponse wrapFailure(String nodeId, Throwable throwable)
+    {
+        if (throwable instanceof CancellationException) {
+            return null;
+        }
+        if (throwable instanceof ProcessingException
+                && throwable.getCause() instanceof SocketTimeoutException) {
+            LOGGER.warn("Node %s did not respond within %s", nodeId, timeout);
+            return wrapper.wrapError(GATEWAY_TIMEOUT, "Node did not respond within " + timeout);
+        }
+        LOGGER.warn(throwable, "Could not get response from node %s", nodeId);
+        return wrapper.wrapError(BAD_GATEWAY, "Could not connect to node");
+    }
+
+    private WrappedResponse wrapResponse(Response response)
+    {
+        try {
+            return wrapper.wrapResponse(response);
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    private Map<String, URI> getUris(String scope, Collection<String> nodeId)
     {
         if (((scope != null) && (!nodeId.isEmpty()))
                 || (scope == null && nodeId.isEmpty())) {
             LOGGER.error("Invalid parameters");
-            return Response.status(BAD_REQUEST)
-                    .entity("Invalid parameters").build();
+            throw new WebApplicationException(Response.status(BAD_REQUEST)
+                    .entity("Invalid parameters").build());
         }
 
         ApiScope apiScope;
@@ -65,7 +381,8 @@ public class RequestDispatcher
         }
         catch (IllegalArgumentException e) {
             LOGGER.error("Invalid scope");
-            return Response.status(BAD_REQUEST).entity("Invalid scope").build();
+            throw new WebApplicationException(Response.status(BAD_REQUEST)
+                    .entity("Invalid scope").build());
         }
 
         Map<String, URI> uriMap;
@@ -76,26 +393,15 @@ public class RequestDispatcher
         }
         catch (IllegalArgumentException e) {
             LOGGER.error("Invalid or duplicate node ID");
-            return Response.status(BAD_REQUEST)
-                    .entity("Invalid or duplicate node ID").build();
+            throw new WebApplicationException(Response.status(BAD_REQUEST)
+                    .entity("Invalid or duplicate node ID").build());
         }
 
         if (apiScope == ApiScope.COORDINATOR && uriMap.size() != 1) {
             LOGGER.error("Number of coordinator is not 1");
-            return Response.status(INTERNAL_SERVER_ERROR)
-                    .entity("Number of coordinator is not 1").build();
+            throw new WebApplicationException(Response.status(INTERNAL_SERVER_ERROR)
+                    .entity("Number of coordinator is not 1").build());
         }
-
-        // Jackson serializes ArrayLists as JSON arrays
-        Map<String, WrappedResponse> responses = uriMap.entrySet().parallelStream()
-                .map(e -> new SimpleEntry<>(
-                        e.getKey(),
-                        wrapper.wrapResponse(apiRequester.send(e.getValue()))))
-                .collect(toImmutableMap(SimpleEntry::getKey, SimpleEntry::getValue));
-
-        return Response.status(MULTI_STATUS)
-                .type(MediaType.APPLICATION_JSON)
-                .entity(responses)
-                .build();
+        return uriMap;
     }
 }
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.teradata.prestomanager.controller;
+
+import io.airlift.stats.CounterStat;
+import org.weakref.jmx.Managed;
+import org.weakref.jmx.Nested;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static java.util.Objects.requireNonNull;
+import static javax.ws.rs.core.HttpHeaders.ACCEPT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_ENCODING;
+import static javax.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+
+/**
+ * Asks agents for gzip-compressed responses, and decompresses them as
+ * they are read
+ * <p>
+ * The agents' HTTP servers compress responses when asked to. Requests that
+ * already set {@code Accept-Encoding} are left alone. The numbers of bytes
+ * received with and without compression, and the size of the compressed
+ * responses once decompressed, are exported over JMX.
+ */
+public final class ResponseCompressionFilter
+        implements ClientRequestFilter, ClientResponseFilter
+{
+    private static final String GZIP = "gzip";
+
+    private final CounterStat compressedBytes = new CounterStat();
+    private final CounterStat decompressedBytes = new CounterStat();
+    private final CounterStat uncompressedBytes = new CounterStat();
+
+    @Override
+    public void filter(ClientRequestContext request)
+    {
+        if (!request.getHeaders().containsKey(ACCEPT_ENCODING)) {
+            request.getHeaders().putSingle(ACCEPT_ENCODING, GZIP);
+        }
+    }
+
+    @Override
+    public void filter(ClientRequestContext request, ClientResponseContext response)
+            throws IOException
+    {
+        if (!response.hasEntity()) {
+            return;
+        }
+        String encoding = response.getHeaderString(CONTENT_ENCODING);
+        if (encoding != null && encoding.trim().equalsIgnoreCase(GZIP)) {
+            InputStream compressed = new CountingInputStream(response.getEntityStream(), compressedBytes);
+            response.setEntityStream(new CountingInputStream(new GZIPInputStream(compressed), decompressedBytes));
+            // The headers now describe the decompressed entity
+            response.getHeaders().remove(CONTENT_ENCODING);
+            response.getHeaders().remove(CONTENT_LENGTH);
+        }
+        else {
+            response.setEntityStream(new CountingInputStream(response.getEntityStream(), uncompressedBytes));
+        }
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getCompressedBytes()
+    {
+        return compressedBytes;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getDecompressedBytes()
+    {
+        return decompressedBytes;
+    }
+
+    @Managed
+    @Nested
+    public CounterStat getUncompressedBytes()
+    {
+        return uncompressedBytes;
+    }
+
+    /**
+     * @return The number of bytes compressed responses decompressed to for
+     * each byte received, or zero if none have been received
+     */
+    @Managed
+    public double getCompressionRatio()
+    {
+        long compressed = compressedBytes.getTotalCount();
+        return compressed == 0 ? 0 : (double) decompressedBytes.getTotalCount() / compressed;
+    }
+
+    /**
+     * Counts the bytes read from a stream as they are read
+     */
+    private static final class CountingInputStream
+            extends FilterInputStream
+    {
+        private final CounterStat counter;
+
+        private CountingInputStream(InputStream in, CounterStat counter)
+        {
+            super(requireNonNull(in));
+            this.counter = requireNonNull(counter);
+        }
+
+        @Override
+        public int read()
+                throws IOException
+        {
+            int b = in.read();
+            if (b >= 0) {
+                counter.update(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException
+        {
+            int count = in.read(b, off, len);
+            if (count > 0) {
+                counter.update(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n)
+                throws IOException
+        {
+            long count = in.skip(n);
+            counter.update(count);
+            return count;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+}
@@ -14,31 +14,32 @@
 package com.teradata.prestomanager.controller;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.util.RawValue;
 import com.google.common.collect.ImmutableMap;
-import com.google.inject.Inject;
-import com.teradata.prestomanager.common.json.JsonResponseReader;
 import io.airlift.log.Logger;
 
 import javax.annotation.Nullable;
 import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 
 public final class ResponseWrapper
 {
     private static final Logger LOGGER = Logger.get(ResponseWrapper.class);
 
-    private final JsonResponseReader reader;
-
-    @Inject
-    private ResponseWrapper(JsonResponseReader reader)
-    {
-        this.reader = requireNonNull(reader);
-    }
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
     public WrappedResponse wrapResponse(Response response)
     {
@@ -48,19 +49,38 @@ public final class ResponseWrapper
                 parseEntity(response));
     }
 
+    /**
+     * Wrap an error found by the controller in place of an agent's response
+     */
+    public WrappedResponse wrapError(Response.Status status, String message)
+    {
+        return new WrappedResponse(status.getStatusCode(),
+                status.getReasonPhrase(),
+                new MultivaluedHashMap<>(),
+                message);
+    }
+
     private Object parseEntity(Response response)
     {
         String mediaType = response.getHeaderString("Content-Type");
 
         if ("application/json".equals(mediaType)) {
+            if (!response.hasEntity()) {
+                return null;
+            }
+            byte[] json;
             try {
-                return reader.read(response);
+                json = response.readEntity(byte[].class);
+                checkJson(json);
             }
-            catch (IOException e) {
+            catch (IOException | ProcessingException e) {
                 LOGGER.warn(e, "Error parsing response to JSON");
                 return ImmutableMap.of("error",
                         "Could not parse response JSON");
             }
+            // Written into the combined response as it is, rather than
+            // read into objects and written again
+            return new RawValue(new Utf8Json(json));
         }
         else {
             try {
@@ -74,6 +94,24 @@ public final class ResponseWrapper
         }
     }
 
+    /**
+     * Check that the bytes are a single JSON value, without reading the
+     * value into objects
+     */
+    private static void checkJson(byte[] json)
+            throws IOException
+    {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() == null) {
+                throw new IOException("Response is empty");
+            }
+            parser.skipChildren();
+            if (parser.nextToken() != null) {
+                throw new IOException("Response has more than one JSON value");
+            }
+        }
+    }
+
     public static class WrappedResponse
     {
         private int status;
@@ -114,4 +152,116 @@ public final class ResponseWrapper
             return headers;
         }
     }
+
+    /**
+     * JSON to write as it is. Generators that write bytes, such as those of
+     * Multi-Status responses, copy its UTF-8 bytes without decoding them;
+     * generators that write characters decode it.
+     */
+    private static final class Utf8Json
+            implements SerializableString
+    {
+        private final byte[] json;
+
+        private Utf8Json(byte[] json)
+        {
+            this.json = requireNonNull(json);
+        }
+
+        private SerializedString decoded()
+        {
+            return new SerializedString(new String(json, UTF_8));
+        }
+
+        @Override
+        public String getValue()
+        {
+            return decoded().getValue();
+        }
+
+        @Override
+        public int charLength()
+        {
+            return decoded().charLength();
+        }
+
+        @Override
+        public char[] asQuotedChars()
+        {
+            return decoded().asQuotedChars();
+        }
+
+        @Override
+        public byte[] asUnquotedUTF8()
+        {
+            return json;
+        }
+
+        @Override
+        public byte[] asQuotedUTF8()
+        {
+            return decoded().asQuotedUTF8();
+        }
+
+        @Override
+        public int appendQuotedUTF8(byte[] buffer, int offset)
+        {
+            return decoded().appendQuotedUTF8(buffer, offset);
+        }
+
+        @Override
+        public int appendQuoted(char[] buffer, int offset)
+        {
+            return decoded().appendQuoted(buffer, offset);
+        }
+
+        @Override
+        public int appendUnquotedUTF8(byte[] buffer, int offset)
+        {
+            if (offset + json.length > buffer.length) {
+                return -1;
+            }
+            System.arraycopy(json, 0, buffer, offset, json.length);
+            return json.length;
+        }
+
+        @Override
+        public int appendUnquoted(char[] buffer, int offset)
+        {
+            return decoded().appendUnquoted(buffer, offset);
+        }
+
+        @Override
+        public int writeQuotedUTF8(OutputStream output)
+                throws IOException
+        {
+            return decoded().writeQuotedUTF8(output);
+        }
+
+        @Override
+        public int writeUnquotedUTF8(OutputStream output)
+                throws IOException
+        {
+            output.write(json);
+            return json.length;
+        }
+
+        @Override
+        public int putQuotedUTF8(ByteBuffer buffer)
+                throws IOException
+        {
+            return decoded().putQuotedUTF8(buffer);
+        }
+
+        @Override
+        public int putUnquotedUTF8(ByteBuffer buffer)
+                throws IOException
+        {
+            if (json.length > buffer.remaining()) {
+                return -1;
+            }
+            buffer.put(json);
+            return json.length;
+        }
+    }
 }
@@ -15,11 +15,15 @@ package com.teradata.prestomanager.controller.api;
 
 import com.teradata.prestomanager.common.ApiRequester;
 import com.teradata.prestomanager.controller.RequestDispatcher;
+import io.airlift.units.Duration;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.core.Response;
 
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 import static java.util.Objects.requireNonNull;
 
@@ -48,8 +52,28 @@ public abstract class AbstractControllerAPI
         return ApiRequester.builder(forwardingClient, clazz);
     }
 
+    protected Duration getDispatchTimeout()
+    {
+        return requestDispatcher.getTimeout();
+    }
+
     protected Response forwardRequest(String scope, ApiRequester requester, Collection<String> nodeId)
     {
         return requestDispatcher.forwardRequest(scope, requester, nodeId);
     }
+
+    protected Map<String, Future<Response>> sendRequest(String scope, ApiRequester requester, Collection<String> nodeId)
+    {
+        return requestDispatcher.sendRequest(scope, requester, nodeId);
+    }
+
+    protected Response forwardRequest(String scope, Function<String, ApiRequester> requesters, Collection<String> nodeId)
+    {
+        return requestDispatcher.forwardRequest(scope, requesters, nodeId);
+    }
+
+    protected Map<String, Future<Response>> sendRequest(String scope, Function<String, ApiRequester> requesters, Collection<String> nodeId)
+    {
+        return requestDispatcher.sendRequest(scope, requesters, nodeId);
+    }
 }
@@ -16,6 +16,10 @@ package com.teradata.prestomanager.controller.api;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.teradata.prestomanager.common.ApiRequester;
+import com.teradata.prestomanager.common.LogFormat;
+import com.teradata.prestomanager.controller.LogFanIn;
+import com.teradata.prestomanager.controller.LogHistograms;
+import com.teradata.prestomanager.controller.LogMerger;
 import com.teradata.prestomanager.controller.RequestDispatcher;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -29,13 +33,20 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
+import static com.teradata.prestomanager.common.SimpleResponses.badRequest;
+import static java.util.Objects.requireNonNull;
 import static org.eclipse.jetty.http.HttpMethod.DELETE;
 import static org.eclipse.jetty.http.HttpMethod.GET;
 
@@ -45,12 +56,16 @@ import static org.eclipse.jetty.http.HttpMethod.GET;
 public class ControllerLogsAPI
         extends AbstractControllerAPI
 {
+    private final LogFanIn logFanIn;
+
     @Inject
     public ControllerLogsAPI(
             Client forwardingClient,
-            RequestDispatcher requestDispatcher)
+            RequestDispatcher requestDispatcher,
+            LogFanIn logFanIn)
     {
         super(forwardingClient, requestDispatcher);
+        this.logFanIn = requireNonNull(logFanIn);
     }
 
     @GET
@@ -72,9 +87,21 @@ public class ControllerLogsAPI
 
     @GET
     @Path("/{file}")
-    @Produces(MediaType.TEXT_PLAIN)
-    @ApiOperation(value = "Get Presto log file")
+    @Produces({MediaType.TEXT_PLAIN, LogFormat.NDJSON_MEDIA_TYPE, MediaType.SERVER_SENT_EVENTS})
+    @ApiOperation(value = "Get Presto log file",
+            notes = "With merge=true, the entries of all nodes are returned as a single "
+                    + "JSON stream in time order, each with the ID of its node. "
+                    + "With follow=true, the new entries of all nodes are streamed as "
+                    + "server-sent events as they are written. "
+                    + "With cursors, the next n entries of each node are returned, with "
+                    + "each node's cursor after them; the cursors are given back as "
+                    + "repeated cursor=<nodeId>:<cursor> parameters to get the next page, "
+                    + "or as an empty cursor to start at the beginning. "
+                    + "With format=ndjson, the nodes return each entry as a line with a JSON "
+                    + "object of its fields, and merged entries are returned the same way, "
+                    + "each with the ID of its node, followed by the errors and cursors")
     @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Retrieved merged or followed logs"),
             @ApiResponse(code = 207, message = "Multiple responses available"),
             @ApiResponse(code = 400, message = "Request contains invalid parameters")})
     public Response getLog(
@@ -83,21 +110,135 @@ public class ControllerLogsAPI
             @QueryParam("to") Instant toDate,
             @QueryParam("level") @DefaultValue("ALL") String level,
             @QueryParam("n") Integer maxEntries,
+            @QueryParam("q") String search,
+            @QueryParam("merge") @DefaultValue("false") boolean merge,
+            @QueryParam("follow") @DefaultValue("false") boolean follow,
+            @QueryParam("cursor") List<String> cursors,
+            @QueryParam("format") @DefaultValue("JSON") LogFormat format,
+            @QueryParam("scope") String scope,
+            @QueryParam("nodeId") List<String> nodeId)
+    {
+        Map<String, String> nodeCursors;
+        try {
+            nodeCursors = cursors.isEmpty() ? null : parseCursors(cursors);
+        }
+        catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        Function<String, ApiRequester> apiRequesters = id -> {
+            ApiRequester.Builder apiRequester = requesterBuilder(ControllerLogsAPI.class)
+                    .httpMethod(GET)
+                    .accept(follow ? MediaType.SERVER_SENT_EVENTS
+                            : format != LogFormat.JSON || merge || nodeCursors != null ? format.getMediaType()
+                            : MediaType.TEXT_PLAIN)
+                    .pathMethod("getLog")
+                    .resolveTemplate("file", file);
+
+            optionalQueryParam(apiRequester, "from", fromDate);
+            optionalQueryParam(apiRequester, "to", toDate);
+            optionalQueryParam(apiRequester, "level", level);
+            optionalQueryParam(apiRequester, "n", maxEntries);
+            optionalQueryParam(apiRequester, "q", search);
+            if (follow) {
+                apiRequester.queryParam("follow", true);
+            }
+            if (format != LogFormat.JSON) {
+                apiRequester.queryParam("format", format);
+            }
+            if (nodeCursors != null) {
+                // Nodes without a cursor start at the beginning
+                apiRequester.queryParam("cursor", nodeCursors.getOrDefault(id, ""));
+            }
+            return apiRequester.build();
+        };
+
+        if (!merge && !follow) {
+            return forwardRequest(scope, apiRequesters, nodeId);
+        }
+        Map<String, Future<Response>> responses;
+        try {
+            responses = sendRequest(scope, apiRequesters, nodeId);
+        }
+        catch (WebApplicationException e) {
+            return e.getResponse();
+        }
+        if (follow) {
+            return logFanIn.followLogs(responses);
+        }
+        if (nodeCursors != null) {
+            // Every entry of each page is kept, so the nodes' cursors follow them
+            return LogMerger.mergeLogPages(responses, format, getDispatchTimeout());
+        }
+        // The agents apply the same limit, so the entries kept are among theirs
+        return LogMerger.mergeLogs(responses,
+                maxEntries == null ? Integer.MAX_VALUE : maxEntries, fromDate != null, format,
+                getDispatchTimeout());
+    }
+
+    /**
+     * @return The cursors by node ID
+     * @throws IllegalArgumentException if a cursor is neither empty nor a
+     * node ID and a cursor separated by a colon
+     */
+    private static Map<String, String> parseCursors(List<String> cursors)
+    {
+        Map<String, String> nodeCursors = new HashMap<>();
+        for (String cursor : cursors) {
+            if (cursor.isEmpty()) {
+                continue;
+            }
+            // Node IDs may contain colons, but cursors do not
+            int separator = cursor.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Cursors must be empty or <nodeId>:<cursor>");
+            }
+            nodeCursors.put(cursor.substring(0, separator), cursor.substring(separator + 1));
+        }
+        return nodeCursors;
+    }
+
+    @GET
+    @Path("/{file}/histogram")
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Count Presto log entries",
+            notes = "The counts of all nodes are added together")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "Counted logs"),
+            @ApiResponse(code = 400, message = "Request contains invalid parameters")})
+    public Response getHistogram(
+            @PathParam("file") String file,
+            @QueryParam("from") Instant fromDate,
+            @QueryParam("to") Instant toDate,
+            @QueryParam("level") @DefaultValue("ALL") String level,
+            @QueryParam("q") String search,
+            @QueryParam("by") List<String> groups,
+            @QueryParam("interval") String interval,
             @QueryParam("scope") String scope,
             @QueryParam("nodeId") List<String> nodeId)
     {
         ApiRequester.Builder apiRequester = requesterBuilder(ControllerLogsAPI.class)
                 .httpMethod(GET)
-                .accept(MediaType.TEXT_PLAIN)
-                .pathMethod("getLog")
+                .accept(MediaType.APPLICATION_JSON)
+                .pathMethod("getHistogram")
                 .resolveTemplate("file", file);
 
         optionalQueryParam(apiRequester, "from", fromDate);
         optionalQueryParam(apiRequester, "to", toDate);
         optionalQueryParam(apiRequester, "level", level);
-        optionalQueryParam(apiRequester, "n", maxEntries);
+        optionalQueryParam(apiRequester, "q", search);
+        for (String group : groups) {
+            apiRequester.queryParam("by", group);
+        }
+        optionalQueryParam(apiRequester, "interval", interval);
 
-        return forwardRequest(scope, apiRequester.build(), nodeId);
+        Map<String, Future<Response>> responses;
+        try {
+            responses = sendRequest(scope, apiRequester.build(), nodeId);
+        }
+        catch (WebApplicationException e) {
+            return e.getResponse();
+        }
+        return LogHistograms.mergeHistograms(responses, getDispatchTimeout());
     }
 
     @DELETE
@@ -123,4 +264,28 @@ public class ControllerLogsAPI
 
         return forwardRequest(scope, apiRequester.build(), nodeId);
     }
+
+    @GET
+    @Path("/{file}/jobs/{id}")
+    @Produces(MediaType.TEXT_PLAIN)
+    @ApiOperation(value = "Get the status of a log deletion")
+    @ApiResponses(value = {
+            @ApiResponse(code = 207, message = "Multiple responses available"),
+            @ApiResponse(code = 400, message = "Request contains invalid parameters")})
+    public Response getJobStatus(
+            @PathParam("file") String file,
+            @PathParam("id") String id,
+            @QueryParam("scope") String scope,
+            @QueryParam("nodeId") List<String> nodeId)
+    {
+        ApiRequester apiRequester = requesterBuilder(ControllerLogsAPI.class)
+                .httpMethod(GET)
+                .accept(MediaType.APPLICATION_JSON)
+                .pathMethod("getJobStatus")
+                .resolveTemplate("file", file)
+                .resolveTemplate("id", id)
+                .build();
+
+        return forwardRequest(scope, apiRequester, nodeId);
+    }
 }